@@ -0,0 +1,40 @@
+package com.babai.wml.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.babai.wml.core.Config;
+
+/** Reading a unit type tag, as done for every [unit_type] when extracting data. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigBenchmark {
+	private String unitType;
+
+	@Setup
+	public void setup() throws Exception {
+		String text = Corpus.read("units.cfg");
+		int start = text.indexOf("[unit_type]");
+		int end = text.indexOf("[/unit_type]", start);
+		unitType = text.substring(start, end);
+	}
+
+	@Benchmark
+	public Config read() {
+		return Config.read(unitType);
+	}
+}
@@ -0,0 +1,55 @@
+package com.babai.wml.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import com.babai.wml.core.Definition;
+import com.babai.wml.preprocessor.ParseException;
+import com.babai.wml.preprocessor.Preprocessor;
+
+/** Loads the checked-in corpora from the benchmark resources. */
+public final class Corpus {
+	private Corpus() {
+	}
+
+	public static String read(String name) throws IOException {
+		try (InputStream in = Corpus.class.getResourceAsStream("/corpus/" + name)) {
+			if (in == null) {
+				throw new IOException("No such corpus: " + name);
+			}
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	/** Preprocess a corpus file and return the parser holding its definitions. */
+	public static Preprocessor parse(String name) throws IOException, ParseException {
+		var pp = new Preprocessor(Path.of("corpus", name), read(name));
+		pp.setOutput(new PrintStream(OutputStream.nullOutputStream()));
+		pp.parse();
+		return pp;
+	}
+
+	public static Definition definition(Preprocessor pp, String macro) {
+		var entry = pp.getDefines().last(macro);
+		if (entry == null) {
+			throw new IllegalArgumentException("No such macro in corpus: " + macro);
+		}
+		return entry.def();
+	}
+
+	/** Delete a temporary tree made by a benchmark. */
+	public static void delete(Path root) throws IOException {
+		try (Stream<Path> files = Files.walk(root)) {
+			for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(p);
+			}
+		}
+	}
+}
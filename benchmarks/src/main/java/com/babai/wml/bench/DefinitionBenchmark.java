@@ -0,0 +1,66 @@
+package com.babai.wml.bench;
+
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.babai.wml.core.Definition;
+import com.babai.wml.core.MacroArg;
+
+/**
+ * Macro expansion of large ability and unit macros, comparing the compiled
+ * single pass expansion against the old replace per argument loop.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DefinitionBenchmark {
+	@Param({ "ABILITY_LEADERSHIP_LEVEL", "ABILITY_AURA", "UNIT_BODY_ELVISH_FIGHTER",
+			"UNIT_BODY_DWARVISH_GUARDSMAN", "UNIT_BODY_LOYAL_LEADER" })
+	public String macro;
+
+	private Definition def;
+	private Vector<MacroArg> values;
+	private HashMap<String, String> keyVals;
+
+	@Setup
+	public void setup() throws Exception {
+		def = Corpus.definition(Corpus.parse("macros.cfg"), macro);
+		values = new Vector<>();
+		for (int i = 0; i < def.getParamCount(); i++) {
+			values.add(new MacroArg("value_of_" + def.getArgs().get(i), 0, 0, 0));
+		}
+		keyVals = new HashMap<>();
+		if (def.getDefArgs().containsKey("ROLE")) {
+			keyVals.put("ROLE", "hero");
+		}
+		if (!def.expand2(values, keyVals).equals(LegacyExpansion.expand2(def, values, keyVals))) {
+			throw new IllegalStateException("Expansions differ for " + macro);
+		}
+	}
+
+	@Benchmark
+	public String legacy() {
+		return LegacyExpansion.expand2(def, values, keyVals);
+	}
+
+	@Benchmark
+	public String compiled() {
+		return def.expand2(values, keyVals);
+	}
+}
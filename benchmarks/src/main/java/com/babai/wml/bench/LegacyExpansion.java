@@ -0,0 +1,32 @@
+package com.babai.wml.bench;
+
+import java.util.HashMap;
+import java.util.Vector;
+
+import com.babai.wml.core.Definition;
+import com.babai.wml.core.MacroArg;
+
+/** The replace-per-argument expansion Definition used before compiling its body. */
+final class LegacyExpansion {
+	private LegacyExpansion() {
+	}
+
+	static String expand2(Definition def, Vector<MacroArg> values, HashMap<String, String> keyVals) {
+		String unparsed = def.getValue();
+		int i = 0;
+		for (var arg : def.getArgs()) {
+			unparsed = unparsed.replace("{" + arg + "}", values.get(i).value());
+			i++;
+		}
+
+		for (var entry : def.getDefArgs().entrySet()) {
+			String val = keyVals.get(entry.getKey());
+			if (val == null) {
+				val = entry.getValue();
+			}
+			unparsed = unparsed.replace("{" + entry.getKey() + "}", val);
+		}
+
+		return unparsed;
+	}
+}
@@ -0,0 +1,91 @@
+package com.babai.wml.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.babai.wml.core.Definition;
+import com.babai.wml.core.MacroTable;
+import com.babai.wml.utils.Table;
+
+/**
+ * Lookups and copies of the define table, against the Table it replaced.
+ * Copying happens once per LSP parse and per include folder when parsing in
+ * parallel, lookups once per macro call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MacroTableBenchmark {
+	@Param({ "100", "5000" })
+	public int size;
+
+	private MacroTable macros;
+	private Table table;
+	private String[] names;
+	private int next;
+
+	@Setup
+	public void setup() {
+		macros = new MacroTable();
+		table = Table.ofWithIndices(
+				new Class<?>[] { Integer.class, String.class, String.class, Definition.class },
+				new String[] { "Line", "URI", "Name", "Definition" },
+				2);
+		names = new String[size];
+		for (int i = 0; i < size; i++) {
+			names[i] = "MACRO_" + i;
+			String uri = "file:///data/core/macros/file" + (i / 50) + ".cfg";
+			var def = new Definition(names[i], "value=" + i);
+			macros.add(i % 50, uri, names[i], def);
+			table.addRow(i % 50, uri, names[i], def);
+		}
+	}
+
+	private String nextName() {
+		next = (next + 7) % size;
+		return names[next];
+	}
+
+	@Benchmark
+	public MacroTable.Entry lookup() {
+		return macros.first(nextName());
+	}
+
+	@Benchmark
+	public List<Table.Row> lookupTable() {
+		return table.getRows("Name", nextName());
+	}
+
+	@Benchmark
+	public MacroTable copy() {
+		return macros.copy();
+	}
+
+	@Benchmark
+	public Table copyTable() {
+		return table.copy();
+	}
+
+	/** A copy followed by a define, as done for each file parsed ahead. */
+	@Benchmark
+	public MacroTable copyAndAdd() {
+		MacroTable t = macros.copy();
+		t.add(0, "file:///bench.cfg", nextName(), null);
+		return t;
+	}
+}
@@ -0,0 +1,22 @@
+package com.babai.wml.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs JMH with the GC profiler on unless another profiler was asked for,
+ * so every run also reports the allocation rate per operation.
+ */
+public final class Main {
+	private Main() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		var all = new ArrayList<>(List.of(args));
+		if (!all.contains("-prof") && !all.contains("-l") && !all.contains("-h")) {
+			all.add(0, "-prof");
+			all.add(1, "gc");
+		}
+		org.openjdk.jmh.Main.main(all.toArray(new String[0]));
+	}
+}
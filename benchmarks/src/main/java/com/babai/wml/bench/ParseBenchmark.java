@@ -0,0 +1,89 @@
+package com.babai.wml.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.babai.wml.core.MacroTable;
+import com.babai.wml.preprocessor.ParseException;
+import com.babai.wml.preprocessor.Preprocessor;
+import com.babai.wml.preprocessor.PreprocessorConstants;
+import com.babai.wml.preprocessor.Token;
+
+/**
+ * Lexing and full preprocessing of the corpora. The bytes counter is the
+ * throughput in bytes per second, divide by 10^6 for MB/s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+	@Param({ "macros.cfg", "units.cfg" })
+	public String corpus;
+
+	private String text;
+	private int size;
+	private MacroTable base;
+	private PrintStream out;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Bytes {
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		text = Corpus.read(corpus);
+		size = text.getBytes(StandardCharsets.UTF_8).length;
+		// units.cfg calls the macros of macros.cfg
+		base = corpus.equals("macros.cfg") ? new MacroTable() : Corpus.parse("macros.cfg").getDefines();
+		out = new PrintStream(OutputStream.nullOutputStream());
+	}
+
+	@Benchmark
+	public int lex(Bytes counter) {
+		var pp = new Preprocessor(Path.of("corpus", corpus), text);
+		int tokens = 0;
+		for (Token t = pp.token_source.getNextToken(); t.kind != PreprocessorConstants.EOF;
+				t = pp.token_source.getNextToken()) {
+			tokens++;
+		}
+		counter.bytes += size;
+		return tokens;
+	}
+
+	@Benchmark
+	public Preprocessor parse(Bytes counter) throws ParseException {
+		var pp = new Preprocessor(Path.of("corpus", corpus), text);
+		pp.setOutput(out);
+		pp.setDefinesMap(base.copy());
+		pp.parse();
+		counter.bytes += size;
+		return pp;
+	}
+}
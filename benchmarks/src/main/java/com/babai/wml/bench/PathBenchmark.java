@@ -0,0 +1,70 @@
+package com.babai.wml.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.babai.wml.utils.FS;
+
+/**
+ * Resolving Wesnoth paths against a data tree with many binary paths, as
+ * done for hovers and path completion. Asset paths are searched in every
+ * binary path, the file system calls dominate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathBenchmark {
+	private static final int BINARY_PATHS = 16;
+
+	@Param({ "units/bench/elf-0.png", "units/missing.png", "./units/bench.cfg", "~add-ons/Bench/_main.cfg" })
+	public String path;
+
+	private Path root, dataPath, userDataPath, current;
+	private HashSet<Path> binaryPaths;
+
+	@Setup
+	public void setup() throws Exception {
+		root = Files.createTempDirectory("wml-bench");
+		dataPath = Files.createDirectories(root.resolve("data"));
+		userDataPath = Files.createDirectories(root.resolve("userdata/data"));
+		binaryPaths = new HashSet<>();
+		for (int i = 0; i < BINARY_PATHS; i++) {
+			Path bpath = Path.of("data/add-ons/Bench" + i);
+			binaryPaths.add(bpath);
+			Files.createDirectories(root.resolve(bpath).resolve("images/units/bench"));
+		}
+		// found in a single binary path only
+		Files.writeString(root.resolve("data/add-ons/Bench7/images/units/bench/elf-0.png"), "");
+		Files.createDirectories(userDataPath.resolve("add-ons/Bench"));
+		Files.writeString(userDataPath.resolve("add-ons/Bench/_main.cfg"), "");
+		current = Files.createDirectories(root.resolve("data/add-ons/Bench0/units")).resolve("_main.cfg");
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		Corpus.delete(root);
+	}
+
+	@Benchmark
+	public Path resolve() {
+		return FS.resolve(path, binaryPaths, current, dataPath, userDataPath);
+	}
+}
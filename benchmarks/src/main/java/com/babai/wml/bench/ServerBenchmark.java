@@ -0,0 +1,80 @@
+package com.babai.wml.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.lsp4j.InitializeParams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.babai.wml.core.MacroTable;
+import com.babai.wml.lsp.WMLLanguageServer;
+
+/**
+ * Startup of the language server: parsing the -include folders and the
+ * workspace, which is what initialize spends its time on. Uses a data folder
+ * with the macro corpus and a workspace with several copies of the unit
+ * corpus, without the macro index cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerBenchmark {
+	private static final int UNIT_FILES = 8;
+
+	@Param({ "1", "4" })
+	public int jobs;
+
+	private Path root, dataPath, userDataPath, workspace;
+	private Vector<Path> includes;
+
+	@Setup
+	public void setup() throws Exception {
+		root = Files.createTempDirectory("wml-bench");
+		dataPath = Files.createDirectories(root.resolve("data"));
+		userDataPath = Files.createDirectories(root.resolve("userdata"));
+		Path macros = Files.createDirectories(dataPath.resolve("core/macros"));
+		Files.writeString(macros.resolve("macros.cfg"), Corpus.read("macros.cfg"));
+		includes = new Vector<>();
+		includes.add(macros);
+
+		workspace = Files.createDirectories(root.resolve("campaign"));
+		Files.writeString(workspace.resolve("_main.cfg"), "{./units}\n");
+		Path units = Files.createDirectories(workspace.resolve("units"));
+		String text = Corpus.read("units.cfg");
+		for (int i = 0; i < UNIT_FILES; i++) {
+			Files.writeString(units.resolve("units" + i + ".cfg"), text);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		Corpus.delete(root);
+	}
+
+	@Benchmark
+	public WMLLanguageServer initialize() {
+		var server = new WMLLanguageServer(new MacroTable(), dataPath, userDataPath, includes, null, null, jobs);
+		var params = new InitializeParams();
+		params.setRootUri(workspace.toUri().toString());
+		server.initialize(params).join();
+		// stops the background path indexing
+		server.shutdown().join();
+		return server;
+	}
+}
@@ -1,11 +1,13 @@
 package com.babai.wml;
 
 import com.babai.wml.core.Config;
-import com.babai.wml.core.ConfigAttributeBase;
+import com.babai.wml.core.UnitTypeDB;
 import com.babai.wml.lsp.WMLLanguageServer;
 import com.babai.wml.preprocessor.Preprocessor;
 import com.babai.wml.utils.ArgParser;
 import com.babai.wml.utils.Colors;
+import com.babai.wml.utils.OutputSink;
+import com.babai.wml.utils.Trace;
 
 import org.eclipse.lsp4j.jsonrpc.Launcher;
 import org.eclipse.lsp4j.launch.LSPLauncher;
@@ -14,6 +16,7 @@ import org.eclipse.lsp4j.services.LanguageClient;
 import java.awt.Color;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -41,12 +44,21 @@ public class Main {
 	}
 
 	private static void initParse(ArgParser argParse) throws IOException {
+		if (argParse.extractUnitTypeData && argParse.unitDbPath != null
+				&& argParse.inputPath == null && argParse.includes.isEmpty()) {
+			// nothing to parse, export the given database
+			writeUnitTypeData(UnitTypeDB.open(argParse.unitDbPath), argParse.unitTypeOutPath);
+			return;
+		}
+
 		var p = new Preprocessor(System.in);
 		p.showParseLogs(argParse.showParseLogs);
 		p.showWarnLogs(argParse.warnParseLogs);
-		p.setOutput(argParse.out == null ? System.out : argParse.out);
+		PrintStream out = argParse.out == null ? OutputSink.stdout() : argParse.out;
+		p.setOutput(out);
 		p.setDefinesMap(argParse.predefines);
 		p.setExtractData(argParse.extractUnitTypeData);
+		p.setJobs(argParse.jobs);
 		p.token_source.dataPath = argParse.dataPath;
 		p.token_source.userDataPath = argParse.userDataPath;
 		p.token_source.showLogs = argParse.showLogs;
@@ -55,90 +67,62 @@ public class Main {
 			p.debugPrint("Parsing " + colorify(argParse.inputPath.toString(), Colors.filePathColor));
 		}
 
-		for (Path incpath : argParse.includes) {
-			p.subparse(incpath);
-		}
+		try {
+			for (Path incpath : argParse.includes) {
+				p.subparse(incpath);
+			}
 
-		if (argParse.inputPath != null) {
-			p.subparse(argParse.inputPath);
+			if (argParse.inputPath != null) {
+				p.subparse(argParse.inputPath);
+			}
+		} finally {
+			if (argParse.out != null) {
+				out.close();
+			} else {
+				out.flush();
+			}
 		}
 
 		var unitTypes = p.getUnitTypes();
 		p.debugPrint("Binary Paths: " + p.getBinaryPaths());
+		p.debugPrint("Path resolution: " + p.getPathResolver().hitCount() + " cached, "
+				+ p.getPathResolver().missCount() + " looked up.");
 		if (argParse.extractUnitTypeData) {
 			HashSet<Config> unitTypeData = p.getUnitTypeData();
-			writeUnitTypeData(unitTypeData, argParse.unitTypeOutPath);
-			p.debugPrint("Total " + p.getDefines().rowCount() + " macros and " + unitTypeData.size() + " unit types defined.");
+			writeUnitTypeData(UnitTypeDB.of(unitTypeData), argParse.unitTypeOutPath);
+			p.debugPrint("Total " + p.getDefines().size() + " macros and " + unitTypeData.size() + " unit types defined.");
 		} else {
 			p.debugPrint("Unit Types: " + unitTypes);
-			p.debugPrint("Total " + p.getDefines().rowCount() + " macros and " + unitTypes.size() + " unit types defined.");
+			p.debugPrint("Total " + p.getDefines().size() + " macros and " + unitTypes.size() + " unit types defined.");
 		}
 
 	}
 
-	private static void writeUnitTypeData(HashSet<Config> unitTypeData, Path unitTypeOutPath) {
-		final String[] UNIT_TYPE_COLUMNS = {
-			"id",
-			"race",
-			"gender",
-			"hitpoints",
-			"movement_type",
-			"movement",
-			"experience",
-			"level",
-			"alignment",
-			"advances_to",
-			"cost",
-			"usage",
-			"name",
-			"image",
-			"profile",
-			"description"
-		};
-
-		try (BufferedWriter writer = Files.newBufferedWriter(unitTypeOutPath)) {
-
-			// Header
-			writer.write(String.join(",", UNIT_TYPE_COLUMNS));
-			writer.newLine();
-
-			for (Config cfg : unitTypeData) {
-				StringBuilder row = new StringBuilder();
-
-				for (int i = 0; i < UNIT_TYPE_COLUMNS.length; i++) {
-					if (i > 0) row.append(',');
-
-					String key = UNIT_TYPE_COLUMNS[i];
-					ConfigAttributeBase attr = cfg.getAttr(key);
-
-					String value = (attr == null) ? "" : attr.stringValue();
-					row.append(csvEscape(value));
+	/**
+	 * Write the unit types as a binary database, or as CSV or JSON lines if the
+	 * file name ends with .csv or .jsonl.
+	 */
+	private static void writeUnitTypeData(UnitTypeDB db, Path unitTypeOutPath) {
+		String name = unitTypeOutPath.getFileName().toString();
+		try {
+			if (name.endsWith(".csv") || name.endsWith(".jsonl")) {
+				try (BufferedWriter writer = Files.newBufferedWriter(unitTypeOutPath)) {
+					if (name.endsWith(".csv")) {
+						db.writeCsv(writer);
+					} else {
+						db.writeJsonl(writer);
+					}
 				}
-
-				writer.write(row.toString());
-				writer.newLine();
+			} else {
+				db.write(unitTypeOutPath);
 			}
-
 		} catch (IOException e) {
-			throw new UncheckedIOException("Failed to write unit type CSV", e);
+			throw new UncheckedIOException("Failed to write unit type data", e);
 		}
 	}
 
-	private static String csvEscape(String s) {
-		if (s == null) return "";
-
-		boolean needsQuotes =
-				s.contains(",") ||
-				s.contains("\"") ||
-				s.contains("\n") ||
-				s.contains("\r");
-
-		if (!needsQuotes) return s;
-
-		return "\"" + s.replace("\"", "\"\"") + "\"";
-	}
-
 	private static void setLoggingFormat() {
+		Trace.setAnsi(true);
 		for (var handler : Logger.getLogger("").getHandlers()) {
 			handler.setFormatter(new java.util.logging.Formatter() {
 				@Override
@@ -165,7 +149,11 @@ public class Main {
 			argParser.predefines,
 			argParser.dataPath,
 			argParser.userDataPath,
-			argParser.includes);
+			argParser.includes,
+			argParser.cachePath,
+			argParser.unitDbPath,
+			argParser.jobs);
+		server.setReparseDelay(argParser.reparseDelay);
 		
 		// Initialize a simple JSON-RPC connection over stdin/stdout
 		Launcher<LanguageClient> launcher = LSPLauncher.createServerLauncher(server, System.in, System.out);
@@ -22,6 +22,10 @@ public class Config {
 		return attributes.get(attrName);
 	}
 
+	public int childCount() {
+		return children.size();
+	}
+
 	// @Nullable
 	public Config getChild(int i) {
 		if (i < children.size()) {
@@ -47,30 +51,15 @@ public class Config {
 		return unitTypeId;
 	}
 	
-	// TODO WIP error handling, nested tags
+	/** The first tag of the text, with its nested tags. */
+	// @Nullable
 	public static Config read(String text) {
-		Config cfg = null;
-		String[] lines = text.split("\n+");
-		for (int i = 0; i < lines.length; i++) {
-			String line = lines[i].strip();
-			if (i == 0) {
-				if (line.startsWith("[") && line.endsWith("]")) {
-					line = line.substring(1, line.length()-1);
-					if (line.startsWith("+")) {
-						line = line.substring(1);
-					}
-					if (cfg == null) {
-						cfg = new Config(line);
-					}
-				}
-			} else if (line.contains("=")) {
-				String[] key_val = line.split("=");
-				if (key_val.length > 1) {
-					cfg.add(key_val[0].strip(), key_val[1].strip());
-				}
-			}
-		}
-		return cfg;
+		var result = new ArrayList<Config>(1);
+		var builder = new ConfigBuilder();
+		builder.subscribeAll(result::add);
+		builder.text(text);
+		builder.finish();
+		return result.isEmpty() ? null : result.get(0);
 	}
 
 	public String write(int indentLevel) {
@@ -0,0 +1,154 @@
+package com.babai.wml.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.function.Consumer;
+
+/**
+ * Builds full Config trees out of parse events, in one pass. Only the tags
+ * something subscribed to are built, along with everything nested in them,
+ * and handed over once their closing tag is seen. Outside of those, events
+ * cost a map lookup.
+ *
+ * Text that was not tokenized by the parser, like macro expansions, is fed
+ * through {@link #text(String)} and split into events line by line.
+ */
+public final class ConfigBuilder implements ConfigHandler {
+	private final HashMap<String, Consumer<Config>> subscribers = new HashMap<>();
+	private Consumer<Config> all;
+
+	// tags being built, innermost last
+	private final ArrayList<Config> open = new ArrayList<>();
+
+	// text of the line being read, and whether it ends inside a quoted string
+	private final StringBuilder line = new StringBuilder();
+	private boolean quoted = false;
+
+	/** Build every top level tag with the given name. */
+	public void subscribe(String tagName, Consumer<Config> consumer) {
+		subscribers.put(tagName, consumer);
+	}
+
+	/** Build every top level tag. */
+	public void subscribeAll(Consumer<Config> consumer) {
+		all = consumer;
+	}
+
+	/** Whether a subscribed tag is open. */
+	public boolean isBuilding() {
+		return !open.isEmpty();
+	}
+
+	@Override
+	public void startTag(String name) {
+		flushLine();
+		if (open.isEmpty() && all == null && !subscribers.containsKey(name)) {
+			return;
+		}
+		var cfg = new Config(name);
+		if (!open.isEmpty()) {
+			open.get(open.size() - 1).add(cfg);
+		}
+		open.add(cfg);
+	}
+
+	@Override
+	public void attribute(String key, String value) {
+		if (!open.isEmpty()) {
+			open.get(open.size() - 1).add(key, value);
+		}
+	}
+
+	@Override
+	public void endTag(String name) {
+		flushLine();
+		if (open.isEmpty()) {
+			return;
+		}
+		// tags are closed in order by the parser, the name is not checked
+		Config cfg = open.remove(open.size() - 1);
+		if (open.isEmpty()) {
+			Consumer<Config> consumer = subscribers.getOrDefault(cfg.getName(), all);
+			if (consumer != null) {
+				consumer.accept(cfg);
+			}
+		}
+	}
+
+	/**
+	 * Read tags and attributes out of raw WML text. Outside of subscribed
+	 * tags, text without any tag in it is skipped without being looked at.
+	 */
+	public void text(String s) {
+		if (open.isEmpty() && line.length() == 0 && s.indexOf('[') < 0) {
+			return;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\n' || c == '\r') {
+				if (quoted) {
+					line.append('\n');
+				} else {
+					flushLine();
+				}
+			} else {
+				if (c == '"') {
+					quoted = !quoted;
+				}
+				line.append(c);
+			}
+		}
+	}
+
+	/** Close whatever is still open, as if the text ended with its closing tags. */
+	public void finish() {
+		flushLine();
+		while (!open.isEmpty()) {
+			endTag(open.get(open.size() - 1).getName());
+		}
+	}
+
+	private void flushLine() {
+		if (line.length() == 0) {
+			return;
+		}
+		String l = line.toString().strip();
+		line.setLength(0);
+		quoted = false;
+
+		// any number of tags, then maybe an attribute
+		while (l.startsWith("[")) {
+			int close = l.indexOf(']');
+			if (close < 0 || !isTagName(l, 1, close)) {
+				return;
+			}
+			if (l.charAt(1) == '/') {
+				endTag(l.substring(2, close));
+			} else {
+				startTag(l.substring(l.charAt(1) == '+' ? 2 : 1, close));
+			}
+			l = l.substring(close + 1).strip();
+		}
+
+		int eq = l.indexOf('=');
+		if (eq > 0 && !open.isEmpty()) {
+			attribute(l.substring(0, eq).strip(), l.substring(eq + 1).strip());
+		}
+	}
+
+	private static boolean isTagName(String s, int start, int end) {
+		if (start < end && (s.charAt(start) == '/' || s.charAt(start) == '+')) {
+			start++;
+		}
+		if (start == end) {
+			return false;
+		}
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_')) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,16 @@
+package com.babai.wml.core;
+
+/**
+ * Receives the structure of WML as it is parsed, one event per opening tag,
+ * attribute and closing tag, in document order.
+ */
+public interface ConfigHandler {
+	/** An opening tag, name without brackets or the leading "+" of amendments. */
+	void startTag(String name);
+
+	/** An attribute of the innermost open tag, value as written. */
+	void attribute(String key, String value);
+
+	/** The closing tag of the innermost open tag. */
+	void endTag(String name);
+}
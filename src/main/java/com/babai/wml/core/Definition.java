@@ -1,7 +1,9 @@
 package com.babai.wml.core;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.Vector;
 import java.util.stream.Collectors;
 
@@ -10,15 +12,26 @@ public class Definition {
 	private Vector<String> args = new Vector<>();
 	private HashMap<String, String> defArgs = new HashMap<>();
 
+	// The body split at its parameters: literals[0] slot[0] literals[1] ... literals[n].
+	// A slot below args.size() is a positional argument, the rest index defArgKeys.
+	private String[] literals;
+	private int[] slots;
+	private String[] defArgKeys;
+	private int literalLength;
+	// hash of the parameters and body, 0 until asked for
+	private long fingerprint;
+
 	public Definition(String name, String value) {
 		this.name = name;
 		this.value = value;
+		compile();
 	}
 
 	public Definition(String name, String value, Vector<String> args) {
 		this.name = name;
 		this.value = value;
 		this.args = args;
+		compile();
 	}
 
 	public Definition(String name, String value, Vector<String> args, HashMap<String, String> defArgs) {
@@ -26,14 +39,82 @@ public class Definition {
 		this.value = value;
 		this.args = args;
 		this.defArgs = defArgs;
+		compile();
 	}
 
 	public void addArg(String arg) {
 		args.add(arg);
+		compile();
 	}
 
 	public void addDefArg(String key, String val) {
 		defArgs.put(key, val);
+		compile();
+	}
+
+	/** Split the body into literal text and parameter slots, done once per definition */
+	private void compile() {
+		fingerprint = 0;
+		defArgKeys = defArgs.keySet().toArray(new String[0]);
+		var params = new HashMap<String, Integer>();
+		for (int i = 0; i < defArgKeys.length; i++) {
+			params.put(defArgKeys[i], args.size() + i);
+		}
+		// a positional argument wins over a default one with the same name
+		for (int i = 0; i < args.size(); i++) {
+			params.put(args.get(i), i);
+		}
+
+		var lits = new ArrayList<String>();
+		var slotList = new ArrayList<Integer>();
+		int litStart = 0;
+		int i = value.indexOf('{');
+		while (i >= 0) {
+			int close = value.indexOf('}', i + 1);
+			if (close < 0) {
+				break;
+			}
+			Integer slot = params.get(value.substring(i + 1, close));
+			if (slot != null) {
+				lits.add(value.substring(litStart, i));
+				slotList.add(slot);
+				litStart = close + 1;
+				i = value.indexOf('{', litStart);
+			} else {
+				i = value.indexOf('{', i + 1);
+			}
+		}
+		lits.add(value.substring(litStart));
+
+		literals = lits.toArray(new String[0]);
+		slots = new int[slotList.size()];
+		literalLength = 0;
+		for (int j = 0; j < slots.length; j++) {
+			slots[j] = slotList.get(j);
+		}
+		for (String lit : literals) {
+			literalLength += lit.length();
+		}
+	}
+
+	/**
+	 * A 64 bit hash of the name, parameters and body, the same for two
+	 * definitions that expand the same way. Never 0.
+	 */
+	public long fingerprint() {
+		if (fingerprint == 0) {
+			String sig = toString() + new TreeMap<>(defArgs);
+			long h = 0xcbf29ce484222325L;
+			for (int i = 0; i < sig.length(); i++) {
+				h = (h ^ sig.charAt(i)) * 0x100000001b3L;
+			}
+			fingerprint = h != 0 ? h : 1;
+		}
+		return fingerprint;
+	}
+
+	public String getName() {
+		return this.name;
 	}
 
 	public String getValue() {
@@ -44,6 +125,10 @@ public class Definition {
 		return this.args;
 	}
 	
+	public HashMap<String, String> getDefArgs() {
+		return this.defArgs;
+	}
+
 	public int getParamCount() {
 		return args.size();
 	}
@@ -58,53 +143,53 @@ public class Definition {
 
 	/** Expand the macro, substituting any given args */
 	public String expand(Vector<String> values, HashMap<String, String> keyVals) {
-		String unparsed = this.value;
-		if (values.size() != args.size()) {
-			throw new IllegalArgumentException("Wrong number of arguments supplied to macro '" + name() + "'. "
-					+ "Expected " + args.size() + " but got " + values.size() + ".");
-		}
-
-		int i = 0;
-		for (var arg : args) {
-			unparsed = unparsed.replace("{" + arg + "}", values.get(i));
-			i++;
+		checkArgCount(values.size());
+		String[] vals = new String[args.size() + defArgKeys.length];
+		for (int i = 0; i < values.size(); i++) {
+			vals[i] = values.get(i);
 		}
+		return fill(vals, keyVals);
+	}
 
-		for (var entry : defArgs.entrySet()) {
-			String val = keyVals.get(entry.getKey());
-			if (val == null) {
-				val = entry.getValue();
-			}
-			unparsed = unparsed.replace("{" + entry.getKey() + "}", val);
+	public String expand2(Vector<MacroArg> values, HashMap<String, String> keyVals) {
+		checkArgCount(values.size());
+		String[] vals = new String[args.size() + defArgKeys.length];
+		for (int i = 0; i < values.size(); i++) {
+			vals[i] = values.get(i).value();
 		}
-
-		return unparsed;
+		return fill(vals, keyVals);
 	}
-	
-	public String expand2(Vector<MacroArg> values, HashMap<String, String> keyVals) {
-		String unparsed = this.value;
-		if (values.size() != args.size()) {
+
+	private void checkArgCount(int count) {
+		if (count != args.size()) {
 			throw new IllegalArgumentException("Wrong number of arguments supplied to macro '" + name() + "'. "
-					+ "Expected " + args.size() + " but got " + values.size() + ".");
+					+ "Expected " + args.size() + " but got " + count + ".");
 		}
+	}
 
-		int i = 0;
-		for (var arg : args) {
-			unparsed = unparsed.replace("{" + arg + "}", values.get(i).value());
-			i++;
+	/** Single pass over the compiled body, vals already holds the positional args */
+	private String fill(String[] vals, HashMap<String, String> keyVals) {
+		if (slots.length == 0) {
+			return value;
 		}
 
-		for (var entry : defArgs.entrySet()) {
-			String val = keyVals.get(entry.getKey());
-			if (val == null) {
-				val = entry.getValue();
-			}
-			unparsed = unparsed.replace("{" + entry.getKey() + "}", val);
+		int n = args.size();
+		for (int i = 0; i < defArgKeys.length; i++) {
+			String val = keyVals.get(defArgKeys[i]);
+			vals[n + i] = val != null ? val : defArgs.get(defArgKeys[i]);
 		}
 
-		return unparsed;
+		int size = literalLength;
+		for (int slot : slots) {
+			size += vals[slot].length();
+		}
+		var sb = new StringBuilder(size);
+		for (int i = 0; i < slots.length; i++) {
+			sb.append(literals[i]).append(vals[slots[i]]);
+		}
+		sb.append(literals[slots.length]);
+		return sb.toString();
 	}
-	
 
 	public String expand(Vector<String> values) {
 		return expand(values, new HashMap<>());
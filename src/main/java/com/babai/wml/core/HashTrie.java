@@ -0,0 +1,322 @@
+package com.babai.wml.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Immutable hash array mapped trie from String keys to values. Updates copy
+ * only the path from the root to the changed entry, everything else is shared
+ * with the previous version, so keeping old versions around is cheap.
+ * Lookups don't allocate.
+ */
+final class HashTrie<V> {
+	private static final HashTrie<?> EMPTY = new HashTrie<>(null, 0);
+
+	private final Node root;
+	private final int size;
+
+	private HashTrie(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <V> HashTrie<V> empty() {
+		return (HashTrie<V>) EMPTY;
+	}
+
+	int size() {
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(String key) {
+		return root != null ? (V) root.get(0, key.hashCode(), key) : null;
+	}
+
+	HashTrie<V> put(String key, V value) {
+		int hash = key.hashCode();
+		Node r = root != null ? root : BitmapNode.EMPTY;
+		boolean had = root != null && root.get(0, hash, key) != null;
+		Node n = r.put(0, hash, key, value);
+		return n == root ? this : new HashTrie<>(n, had ? size : size + 1);
+	}
+
+	HashTrie<V> remove(String key) {
+		if (root == null || root.get(0, key.hashCode(), key) == null) {
+			return this;
+		}
+		return new HashTrie<>(root.remove(0, key.hashCode(), key), size - 1);
+	}
+
+	@SuppressWarnings("unchecked")
+	void forEach(BiConsumer<String, V> action) {
+		if (root != null) {
+			root.forEach((BiConsumer<String, Object>) action);
+		}
+	}
+
+	/** Reports every key whose value is not the same object in both tries. */
+	static <V> void diff(HashTrie<V> a, HashTrie<V> b, Consumer<String> changed) {
+		diff(a.root, b.root, changed);
+	}
+
+	private static void diff(Node a, Node b, Consumer<String> changed) {
+		if (a == b) {
+			return;
+		}
+		if (a instanceof BitmapNode na && b instanceof BitmapNode nb) {
+			int bits = na.bitmap | nb.bitmap;
+			while (bits != 0) {
+				int bit = bits & -bits;
+				bits &= ~bit;
+				Object ka = null, va = null, kb = null, vb = null;
+				if ((na.bitmap & bit) != 0) {
+					int i = 2 * Integer.bitCount(na.bitmap & (bit - 1));
+					ka = na.array[i];
+					va = na.array[i + 1];
+				}
+				if ((nb.bitmap & bit) != 0) {
+					int i = 2 * Integer.bitCount(nb.bitmap & (bit - 1));
+					kb = nb.array[i];
+					vb = nb.array[i + 1];
+				}
+				if (va == null || vb == null || (ka == null) != (kb == null)) {
+					// only on one side, or an entry on one side and a subtree on the other
+					diffSlow(ka, va, kb, vb, changed);
+				} else if (ka == null) {
+					diff((Node) va, (Node) vb, changed);
+				} else if (ka.equals(kb)) {
+					if (va != vb) {
+						changed.accept((String) ka);
+					}
+				} else {
+					changed.accept((String) ka);
+					changed.accept((String) kb);
+				}
+			}
+		} else {
+			diffSlow(null, a, null, b, changed);
+		}
+	}
+
+	// slot contents are either a key and its value, or no key and a subtree (or null)
+	private static void diffSlow(Object ka, Object va, Object kb, Object vb, Consumer<String> changed) {
+		var left = new HashMap<String, Object>();
+		var right = new HashMap<String, Object>();
+		collect(ka, va, left);
+		collect(kb, vb, right);
+		for (Map.Entry<String, Object> e : left.entrySet()) {
+			if (right.get(e.getKey()) != e.getValue()) {
+				changed.accept(e.getKey());
+			}
+		}
+		for (String k : right.keySet()) {
+			if (!left.containsKey(k)) {
+				changed.accept(k);
+			}
+		}
+	}
+
+	private static void collect(Object k, Object v, Map<String, Object> into) {
+		if (k != null) {
+			into.put((String) k, v);
+		} else if (v != null) {
+			((Node) v).forEach(into::put);
+		}
+	}
+
+	private static int bit(int hash, int shift) {
+		return 1 << ((hash >>> shift) & 31);
+	}
+
+	private interface Node {
+		Object get(int shift, int hash, String key);
+
+		Node put(int shift, int hash, String key, Object value);
+
+		/** The node without the key, or null if it is then empty. */
+		Node remove(int shift, int hash, String key);
+
+		void forEach(BiConsumer<String, Object> action);
+	}
+
+	/** Up to 32 slots picked by 5 bits of the hash, each a key and value or a subtree. */
+	private static final class BitmapNode implements Node {
+		static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+		final int bitmap;
+		final Object[] array;
+
+		BitmapNode(int bitmap, Object[] array) {
+			this.bitmap = bitmap;
+			this.array = array;
+		}
+
+		@Override
+		public Object get(int shift, int hash, String key) {
+			int bit = bit(hash, shift);
+			if ((bitmap & bit) == 0) {
+				return null;
+			}
+			int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+			Object k = array[i];
+			if (k == null) {
+				return ((Node) array[i + 1]).get(shift + 5, hash, key);
+			}
+			return key.equals(k) ? array[i + 1] : null;
+		}
+
+		@Override
+		public Node put(int shift, int hash, String key, Object value) {
+			int bit = bit(hash, shift);
+			int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+			if ((bitmap & bit) == 0) {
+				Object[] a = new Object[array.length + 2];
+				System.arraycopy(array, 0, a, 0, i);
+				a[i] = key;
+				a[i + 1] = value;
+				System.arraycopy(array, i, a, i + 2, array.length - i);
+				return new BitmapNode(bitmap | bit, a);
+			}
+
+			Object k = array[i];
+			Object v = array[i + 1];
+			if (k == null) {
+				Node sub = ((Node) v).put(shift + 5, hash, key, value);
+				return sub == v ? this : with(i, null, sub);
+			}
+			if (key.equals(k)) {
+				return v == value ? this : with(i, k, value);
+			}
+			return with(i, null, pair(shift + 5, (String) k, v, hash, key, value));
+		}
+
+		@Override
+		public Node remove(int shift, int hash, String key) {
+			int bit = bit(hash, shift);
+			if ((bitmap & bit) == 0) {
+				return this;
+			}
+			int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+			Object k = array[i];
+			if (k == null) {
+				Node sub = ((Node) array[i + 1]).remove(shift + 5, hash, key);
+				if (sub == array[i + 1]) {
+					return this;
+				}
+				if (sub != null) {
+					return with(i, null, sub);
+				}
+			} else if (!key.equals(k)) {
+				return this;
+			}
+
+			if (bitmap == bit) {
+				return null;
+			}
+			Object[] a = new Object[array.length - 2];
+			System.arraycopy(array, 0, a, 0, i);
+			System.arraycopy(array, i + 2, a, i, array.length - i - 2);
+			return new BitmapNode(bitmap & ~bit, a);
+		}
+
+		@Override
+		public void forEach(BiConsumer<String, Object> action) {
+			for (int i = 0; i < array.length; i += 2) {
+				if (array[i] == null) {
+					((Node) array[i + 1]).forEach(action);
+				} else {
+					action.accept((String) array[i], array[i + 1]);
+				}
+			}
+		}
+
+		private BitmapNode with(int i, Object key, Object value) {
+			Object[] a = array.clone();
+			a[i] = key;
+			a[i + 1] = value;
+			return new BitmapNode(bitmap, a);
+		}
+
+		private static Node pair(int shift, String k1, Object v1, int h2, String k2, Object v2) {
+			int h1 = k1.hashCode();
+			if (h1 == h2) {
+				return new CollisionNode(h1, new Object[] { k1, v1, k2, v2 });
+			}
+			return EMPTY.put(shift, h1, k1, v1).put(shift, h2, k2, v2);
+		}
+	}
+
+	/** Keys with the very same hash, searched linearly. */
+	private static final class CollisionNode implements Node {
+		final int hash;
+		final Object[] array;
+
+		CollisionNode(int hash, Object[] array) {
+			this.hash = hash;
+			this.array = array;
+		}
+
+		private int indexOf(String key) {
+			for (int i = 0; i < array.length; i += 2) {
+				if (key.equals(array[i])) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		public Object get(int shift, int hash, String key) {
+			int i = indexOf(key);
+			return i >= 0 ? array[i + 1] : null;
+		}
+
+		@Override
+		public Node put(int shift, int hash, String key, Object value) {
+			if (hash != this.hash) {
+				return new BitmapNode(bit(this.hash, shift), new Object[] { null, this })
+						.put(shift, hash, key, value);
+			}
+			int i = indexOf(key);
+			if (i >= 0) {
+				if (array[i + 1] == value) {
+					return this;
+				}
+				Object[] a = array.clone();
+				a[i + 1] = value;
+				return new CollisionNode(hash, a);
+			}
+			Object[] a = new Object[array.length + 2];
+			System.arraycopy(array, 0, a, 0, array.length);
+			a[array.length] = key;
+			a[array.length + 1] = value;
+			return new CollisionNode(hash, a);
+		}
+
+		@Override
+		public Node remove(int shift, int hash, String key) {
+			int i = indexOf(key);
+			if (i < 0) {
+				return this;
+			}
+			if (array.length == 2) {
+				return null;
+			}
+			Object[] a = new Object[array.length - 2];
+			System.arraycopy(array, 0, a, 0, i);
+			System.arraycopy(array, i + 2, a, i, array.length - i - 2);
+			return new CollisionNode(hash, a);
+		}
+
+		@Override
+		public void forEach(BiConsumer<String, Object> action) {
+			for (int i = 0; i < array.length; i += 2) {
+				action.accept((String) array[i], array[i + 1]);
+			}
+		}
+	}
+}
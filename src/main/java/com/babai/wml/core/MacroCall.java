@@ -12,8 +12,15 @@ public class MacroCall {
 	private final int endChar;
 	private final List<MacroArg> args;
 	private final String uri;
+	// the macro whose #define body the call is in, null outside of one
+	private final String caller;
 
 	public MacroCall(String name, int startLine, int endLine, int startChar, int endChar, List<MacroArg> args, String uri) {
+		this(name, startLine, endLine, startChar, endChar, args, uri, null);
+	}
+
+	public MacroCall(String name, int startLine, int endLine, int startChar, int endChar, List<MacroArg> args, String uri,
+			String caller) {
 		this.name = name;
 		this.startLine = startLine;
 		this.endLine = endLine;
@@ -21,6 +28,7 @@ public class MacroCall {
 		this.endChar = endChar;
 		this.args = Collections.unmodifiableList(args);
 		this.uri = uri;
+		this.caller = caller;
 	}
 
 	public String name()         { return name; }
@@ -30,6 +38,7 @@ public class MacroCall {
 	public int endChar()         { return endChar; }
 	public List<MacroArg> args() { return args; }
 	public String uri()          { return uri; }
+	public String caller()       { return caller; }
 
 	@Override
 	public String toString() {
@@ -0,0 +1,178 @@
+package com.babai.wml.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * The defined macros, indexed by name and by the URI of the defining file.
+ *
+ * Both indices are persistent hash tries, so {@link #copy()} and
+ * {@link #restore(MacroTable)} are O(1): a copy shares all of its structure
+ * with the original, and an add or remove only copies the few nodes on the
+ * path to the changed name. Looking up a name doesn't allocate.
+ */
+public final class MacroTable {
+	/** A single #define of a macro, line is 0 based. */
+	public record Entry(int line, String uri, String name, Definition def) {
+	}
+
+	private HashTrie<Entry[]> byName;
+	private HashTrie<Entry[]> byUri;
+	private int size;
+
+	public MacroTable() {
+		this(HashTrie.empty(), HashTrie.empty(), 0);
+	}
+
+	private MacroTable(HashTrie<Entry[]> byName, HashTrie<Entry[]> byUri, int size) {
+		this.byName = byName;
+		this.byUri = byUri;
+		this.size = size;
+	}
+
+	/** Number of definitions, redefinitions of a name included. */
+	public int size() {
+		return size;
+	}
+
+	public void add(int line, String uri, String name, Definition def) {
+		add(new Entry(line, uri, name, def));
+	}
+
+	private void add(Entry e) {
+		byName = byName.put(e.name, append(byName.get(e.name), e));
+		byUri = byUri.put(e.uri, append(byUri.get(e.uri), e));
+		size++;
+	}
+
+	/** Remove every definition of the given macro. */
+	public void removeAll(String name) {
+		Entry[] entries = byName.get(name);
+		if (entries == null) {
+			return;
+		}
+		byName = byName.remove(name);
+		for (Entry e : entries) {
+			unlinkUri(e);
+		}
+		size -= entries.length;
+	}
+
+	private void unlinkUri(Entry e) {
+		Entry[] inFile = byUri.get(e.uri);
+		int i = indexOf(inFile, e);
+		if (i < 0) {
+			return;
+		}
+		if (inFile.length == 1) {
+			byUri = byUri.remove(e.uri);
+		} else {
+			Entry[] rest = new Entry[inFile.length - 1];
+			System.arraycopy(inFile, 0, rest, 0, i);
+			System.arraycopy(inFile, i + 1, rest, i, rest.length - i);
+			byUri = byUri.put(e.uri, rest);
+		}
+	}
+
+	public boolean contains(String name) {
+		return byName.get(name) != null;
+	}
+
+	/** The first definition of the macro, which is the one expanded, or null. */
+	public Entry first(String name) {
+		Entry[] entries = byName.get(name);
+		return entries != null ? entries[0] : null;
+	}
+
+	/** The latest definition of the macro, or null. */
+	public Entry last(String name) {
+		Entry[] entries = byName.get(name);
+		return entries != null ? entries[entries.length - 1] : null;
+	}
+
+	/** All definitions of the macro, oldest first. */
+	public List<Entry> get(String name) {
+		return view(byName.get(name));
+	}
+
+	/** Definitions made by the given file, in the order they were added. */
+	public List<Entry> inFile(String uri) {
+		return view(byUri.get(uri));
+	}
+
+	public void forEach(Consumer<Entry> action) {
+		byName.forEach((name, entries) -> {
+			for (Entry e : entries) {
+				action.accept(e);
+			}
+		});
+	}
+
+	public List<Entry> entries() {
+		var all = new ArrayList<Entry>(size);
+		forEach(all::add);
+		return all;
+	}
+
+	/** An independent table with the same definitions, in O(1). */
+	public MacroTable copy() {
+		return new MacroTable(byName, byUri, size);
+	}
+
+	/** Go back to the state of the given copy, in O(1). */
+	public void restore(MacroTable snapshot) {
+		byName = snapshot.byName;
+		byUri = snapshot.byUri;
+		size = snapshot.size;
+	}
+
+	/** Names defined, redefined or removed in after since it was copied from before. */
+	public static Set<String> changedNames(MacroTable before, MacroTable after) {
+		var names = new HashSet<String>();
+		HashTrie.diff(before.byName, after.byName, names::add);
+		return names;
+	}
+
+	/**
+	 * Apply what fork changed since it was copied from base. The names and
+	 * files it changed must not have been touched here since then.
+	 */
+	public void merge(MacroTable base, MacroTable fork) {
+		HashTrie.diff(base.byName, fork.byName, name -> byName = put(byName, name, fork.byName.get(name)));
+		HashTrie.diff(base.byUri, fork.byUri, uri -> byUri = put(byUri, uri, fork.byUri.get(uri)));
+		size += fork.size - base.size;
+	}
+
+	private static HashTrie<Entry[]> put(HashTrie<Entry[]> trie, String key, Entry[] entries) {
+		return entries != null ? trie.put(key, entries) : trie.remove(key);
+	}
+
+	private static Entry[] append(Entry[] entries, Entry e) {
+		if (entries == null) {
+			return new Entry[] { e };
+		}
+		Entry[] a = Arrays.copyOf(entries, entries.length + 1);
+		a[entries.length] = e;
+		return a;
+	}
+
+	private static int indexOf(Entry[] entries, Entry e) {
+		if (entries != null) {
+			for (int i = 0; i < entries.length; i++) {
+				if (entries[i] == e) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	private static List<Entry> view(Entry[] entries) {
+		return entries != null ? Collections.unmodifiableList(Arrays.asList(entries)) : List.of();
+	}
+}
@@ -0,0 +1,356 @@
+package com.babai.wml.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Extracted unit types in a compact columnar file, which is memory mapped
+ * when read, so that opening it costs the same whatever its size.
+ *
+ * All numbers are big endian ints:
+ * <pre>
+ * MAGIC VERSION rows columns strings
+ * (name type) per column, name is a string id
+ * string offsets, strings + 1 of them, into the string bytes
+ * rows values per column, a string id or an int depending on the type
+ * UTF-8 bytes of the strings
+ * </pre>
+ * Strings are stored once and referred to by id. A column whose values are
+ * all numbers is stored as ints instead. Rows are sorted by id.
+ */
+public final class UnitTypeDB {
+	private static final int MAGIC = 0x574D4C55; // "WMLU"
+	private static final int VERSION = 1;
+	private static final int HEADER = 5 * Integer.BYTES;
+
+	/** The attributes of [unit_type] that are stored. */
+	public static final String[] COLUMNS = {
+		"id",
+		"race",
+		"gender",
+		"hitpoints",
+		"movement_type",
+		"movement",
+		"experience",
+		"level",
+		"alignment",
+		"advances_to",
+		"cost",
+		"usage",
+		"name",
+		"image",
+		"profile",
+		"description"
+	};
+
+	public static final byte STRING = 0, INT = 1;
+	/** Value of an attribute the unit type doesn't have. */
+	public static final int MISSING = Integer.MIN_VALUE;
+
+	private final ByteBuffer buf;
+	private final int rows, columns, strings;
+	private final int offsetsStart, dataStart, bytesStart;
+	private final String[] columnNames;
+	private final byte[] columnTypes;
+
+	private UnitTypeDB(ByteBuffer buf) throws IOException {
+		this.buf = buf;
+		if (buf.capacity() < HEADER || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+			throw new IOException("Not a unit type database");
+		}
+		rows = buf.getInt(8);
+		columns = buf.getInt(12);
+		strings = buf.getInt(16);
+		offsetsStart = HEADER + columns * 2 * Integer.BYTES;
+		dataStart = offsetsStart + (strings + 1) * Integer.BYTES;
+		bytesStart = dataStart + columns * rows * Integer.BYTES;
+		if (buf.capacity() < bytesStart) {
+			throw new IOException("Truncated unit type database");
+		}
+
+		columnNames = new String[columns];
+		columnTypes = new byte[columns];
+		for (int c = 0; c < columns; c++) {
+			columnNames[c] = string(buf.getInt(HEADER + c * 2 * Integer.BYTES));
+			columnTypes[c] = (byte) buf.getInt(HEADER + c * 2 * Integer.BYTES + Integer.BYTES);
+		}
+	}
+
+	/** Map the database file. */
+	public static UnitTypeDB open(Path file) throws IOException {
+		try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return new UnitTypeDB(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/** Build the database of the given unit types in memory. */
+	public static UnitTypeDB of(Collection<Config> unitTypes) {
+		var sorted = new ArrayList<>(unitTypes);
+		sorted.sort(Comparator.comparing(Config::getID));
+
+		// column values as written in the config, the id without its quotes
+		var values = new String[COLUMNS.length][sorted.size()];
+		var types = new byte[COLUMNS.length];
+		for (int c = 0; c < COLUMNS.length; c++) {
+			boolean numbers = c > 0;
+			for (int r = 0; r < sorted.size(); r++) {
+				Config cfg = sorted.get(r);
+				ConfigAttributeBase attr = cfg.getAttr(COLUMNS[c]);
+				String value = c == 0 ? cfg.getID() : attr == null ? null : attr.stringValue();
+				values[c][r] = value;
+				numbers &= value == null || isInt(value);
+			}
+			types[c] = numbers ? INT : STRING;
+		}
+
+		var ids = new HashMap<String, Integer>();
+		var dictionary = new ArrayList<byte[]>();
+		var columnIds = new int[COLUMNS.length];
+		var data = new int[COLUMNS.length][sorted.size()];
+		for (int c = 0; c < COLUMNS.length; c++) {
+			columnIds[c] = intern(COLUMNS[c], ids, dictionary);
+			for (int r = 0; r < sorted.size(); r++) {
+				String value = values[c][r];
+				if (types[c] == INT) {
+					data[c][r] = value == null ? MISSING : Integer.parseInt(value.strip());
+				} else {
+					data[c][r] = value == null ? -1 : intern(value, ids, dictionary);
+				}
+			}
+		}
+
+		int byteCount = 0;
+		for (byte[] s : dictionary) {
+			byteCount += s.length;
+		}
+		int size = HEADER + COLUMNS.length * 2 * Integer.BYTES
+				+ (dictionary.size() + 1) * Integer.BYTES
+				+ COLUMNS.length * sorted.size() * Integer.BYTES
+				+ byteCount;
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.putInt(MAGIC).putInt(VERSION).putInt(sorted.size()).putInt(COLUMNS.length).putInt(dictionary.size());
+		for (int c = 0; c < COLUMNS.length; c++) {
+			buf.putInt(columnIds[c]).putInt(types[c]);
+		}
+		int offset = 0;
+		for (byte[] s : dictionary) {
+			buf.putInt(offset);
+			offset += s.length;
+		}
+		buf.putInt(offset);
+		for (int[] column : data) {
+			for (int v : column) {
+				buf.putInt(v);
+			}
+		}
+		for (byte[] s : dictionary) {
+			buf.put(s);
+		}
+		try {
+			return new UnitTypeDB(buf.flip());
+		} catch (IOException e) {
+			// written just above
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static int intern(String s, HashMap<String, Integer> ids, ArrayList<byte[]> dictionary) {
+		Integer id = ids.get(s);
+		if (id == null) {
+			id = dictionary.size();
+			ids.put(s, id);
+			dictionary.add(s.getBytes(StandardCharsets.UTF_8));
+		}
+		return id;
+	}
+
+	// an int that fits the column, MISSING is taken
+	private static boolean isInt(String s) {
+		s = s.strip();
+		int start = s.startsWith("-") ? 1 : 0;
+		if (s.length() == start || s.length() > 11) {
+			return false;
+		}
+		for (int i = start; i < s.length(); i++) {
+			if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+				return false;
+			}
+		}
+		long value = Long.parseLong(s);
+		return value > Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Write the database to the file. It is written next to it first and then
+	 * moved over it, a server may have the old one mapped.
+	 */
+	public void write(Path file) throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (var channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer all = buf.duplicate().clear();
+			while (all.hasRemaining()) {
+				channel.write(all);
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	public int size() {
+		return rows;
+	}
+
+	public List<String> columns() {
+		return List.of(columnNames);
+	}
+
+	/** Index of the column, or -1. */
+	public int column(String name) {
+		for (int c = 0; c < columns; c++) {
+			if (columnNames[c].equals(name)) {
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	public byte type(int column) {
+		return columnTypes[column];
+	}
+
+	private int value(int row, int column) {
+		return buf.getInt(dataStart + (column * rows + row) * Integer.BYTES);
+	}
+
+	private String string(int id) {
+		int start = buf.getInt(offsetsStart + id * Integer.BYTES);
+		int end = buf.getInt(offsetsStart + (id + 1) * Integer.BYTES);
+		var bytes = new byte[end - start];
+		buf.get(bytesStart + start, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public String id(int row) {
+		return get(row, 0);
+	}
+
+	/** Row of the unit type with the given id, or -1. */
+	public int find(String id) {
+		int lo = 0, hi = rows - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = id(mid).compareTo(id);
+			if (cmp < 0) {
+				lo = mid + 1;
+			} else if (cmp > 0) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/** Value as written in the config, null if missing. */
+	// @Nullable
+	public String get(int row, int column) {
+		int v = value(row, column);
+		if (columnTypes[column] == INT) {
+			return v == MISSING ? null : Integer.toString(v);
+		}
+		return v < 0 ? null : string(v);
+	}
+
+	// @Nullable
+	public String get(int row, String column) {
+		int c = column(column);
+		return c < 0 ? null : get(row, c);
+	}
+
+	/** Value of an int column, or MISSING. */
+	public int getInt(int row, String column) {
+		int c = column(column);
+		return c < 0 || columnTypes[c] != INT ? MISSING : value(row, c);
+	}
+
+	public void writeCsv(Writer out) throws IOException {
+		out.write(String.join(",", columnNames));
+		out.write('\n');
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < columns; c++) {
+				if (c > 0) out.write(',');
+				out.write(csvEscape(get(r, c)));
+			}
+			out.write('\n');
+		}
+	}
+
+	/** One JSON object per unit type, without its missing attributes. */
+	public void writeJsonl(Writer out) throws IOException {
+		var sb = new StringBuilder();
+		for (int r = 0; r < rows; r++) {
+			sb.setLength(0);
+			sb.append('{');
+			for (int c = 0; c < columns; c++) {
+				String v = get(r, c);
+				if (v == null) continue;
+				if (sb.length() > 1) sb.append(',');
+				jsonString(sb, columnNames[c]).append(':');
+				if (columnTypes[c] == INT) {
+					sb.append(v);
+				} else {
+					jsonString(sb, v);
+				}
+			}
+			out.write(sb.append("}\n").toString());
+		}
+	}
+
+	private static String csvEscape(String s) {
+		if (s == null) return "";
+
+		boolean needsQuotes =
+				s.contains(",") ||
+				s.contains("\"") ||
+				s.contains("\n") ||
+				s.contains("\r");
+
+		if (!needsQuotes) return s;
+
+		return "\"" + s.replace("\"", "\"\"") + "\"";
+	}
+
+	private static StringBuilder jsonString(StringBuilder sb, String s) {
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char ch = s.charAt(i);
+			switch (ch) {
+			case '"' -> sb.append("\\\"");
+			case '\\' -> sb.append("\\\\");
+			case '\n' -> sb.append("\\n");
+			case '\r' -> sb.append("\\r");
+			case '\t' -> sb.append("\\t");
+			default -> {
+				if (ch < 0x20) {
+					sb.append(String.format("\\u%04x", (int) ch));
+				} else {
+					sb.append(ch);
+				}
+			}
+			}
+		}
+		return sb.append('"');
+	}
+}
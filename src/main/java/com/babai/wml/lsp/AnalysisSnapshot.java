@@ -0,0 +1,167 @@
+package com.babai.wml.lsp;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.lsp4j.Diagnostic;
+
+import com.babai.wml.core.MacroCall;
+import com.babai.wml.core.MacroTable;
+import com.babai.wml.preprocessor.ParseSession;
+
+/**
+ * What one parse of the workspace found, frozen. The server publishes a new
+ * snapshot after each parse and request handlers read whichever one is
+ * current, so they never see a parse half done and need no locks.
+ */
+public final class AnalysisSnapshot {
+	/** Before the first parse. */
+	public static final AnalysisSnapshot EMPTY = new AnalysisSnapshot(0, new MacroTable(), new ParseSession(),
+			new ParseSession(), null);
+	// cached for calls to macros that aren't defined
+	private static final MacroTable.Entry UNDEFINED = new MacroTable.Entry(-1, "", "", null);
+
+	private final long version;
+	private final MacroTable defines;
+	private final MacroTable undefined;
+	private final List<MacroCall> calls;
+	private final CallIndex callIndex;
+	// what each call resolved to, filled in as calls are looked at
+	private final Map<MacroCall, MacroTable.Entry> definitions = new ConcurrentHashMap<>();
+	private final Map<String, List<Diagnostic>> errors;
+	// hash of each file's diagnostics, computed when first asked for
+	private final Map<String, String> resultIds = new ConcurrentHashMap<>();
+	private final Set<Path> binaryPaths;
+	private final long binaryPathsVersion;
+	private final Set<String> unitTypes;
+	private final MacroCompletionIndex macroIndex;
+
+	/**
+	 * @param version      increases with each parse
+	 * @param defines      the macros defined at the end of the parse
+	 * @param session      what the parse collected, not changed anymore afterwards
+	 * @param includes     what the parse of the -include paths collected, its diagnostics are kept too
+	 * @param workspaceUri URI of the workspace folder, for ranking macro completions
+	 */
+	public AnalysisSnapshot(long version, MacroTable defines, ParseSession session, ParseSession includes,
+			String workspaceUri) {
+		this.version = version;
+		this.defines = defines.copy();
+		this.undefined = session.getUndefined().copy();
+		this.calls = List.copyOf(session.getMacroCalls());
+		this.callIndex = new CallIndex(calls);
+		var errors = new HashMap<String, List<Diagnostic>>();
+		includes.getErrors().forEach((uri, list) -> errors.put(uri, List.copyOf(list)));
+		session.getErrors().forEach((uri, list) -> errors.put(uri, List.copyOf(list)));
+		this.errors = Map.copyOf(errors);
+		this.binaryPaths = Set.copyOf(session.getBinaryPaths());
+		this.binaryPathsVersion = session.getBinaryPathsVersion();
+		this.unitTypes = Set.copyOf(session.getUnitTypes());
+		this.macroIndex = new MacroCompletionIndex(this.defines, workspaceUri);
+	}
+
+	public long version() {
+		return version;
+	}
+
+	/** The defined macros, as a copy that can be changed freely. */
+	public MacroTable defines() {
+		return defines.copy();
+	}
+
+	public int macroCount() {
+		return defines.size();
+	}
+
+	/** The definition a macro name refers to, also if it went out of scope with #undef. */
+	public MacroTable.Entry findMacro(String name) {
+		var match = defines.first(name);
+		return match != null ? match : undefined.last(name);
+	}
+
+	/** Macros defined in the given file, those removed by #undef since included. */
+	public List<MacroTable.Entry> macrosIn(String uri) {
+		var matches = new ArrayList<>(defines.inFile(uri));
+		matches.addAll(undefined.inFile(uri));
+		return matches;
+	}
+
+	public List<MacroCall> calls() {
+		return calls;
+	}
+
+	/** Calls made in the given file, in order. */
+	public List<MacroCall> callsIn(String uri) {
+		return callIndex.inFile(uri);
+	}
+
+	/** Calls made in the given file overlapping the lines fromLine to toLine, in order. */
+	public List<MacroCall> callsIn(String uri, int fromLine, int toLine) {
+		return callIndex.overlapping(uri, fromLine, toLine);
+	}
+
+	/** The definition the call refers to, as findMacro, looked up once per call. */
+	public MacroTable.Entry definitionOf(MacroCall call) {
+		var match = definitions.computeIfAbsent(call, c -> {
+			var found = findMacro(c.name());
+			return found != null ? found : UNDEFINED;
+		});
+		return match != UNDEFINED ? match : null;
+	}
+
+	/** Diagnostics of the given file URI, empty if it has none. */
+	public List<Diagnostic> errorsOf(String uri) {
+		return errors.getOrDefault(uri, List.of());
+	}
+
+	/** URIs of the files with diagnostics. */
+	public Set<String> diagnosedUris() {
+		return errors.keySet();
+	}
+
+	/**
+	 * Result ID of the file's diagnostics for pull diagnostics, a hash of
+	 * their content. The same diagnostics get the same ID in any snapshot,
+	 * so a client asking with the ID it has can be told nothing changed.
+	 */
+	public String resultIdOf(String uri) {
+		return resultIds.computeIfAbsent(uri, u -> hash(errorsOf(u)));
+	}
+
+	private static String hash(List<Diagnostic> diagnostics) {
+		long h = diagnostics.size();
+		for (Diagnostic d : diagnostics) {
+			var range = d.getRange();
+			String s = range.getStart().getLine() + ":" + range.getStart().getCharacter() + "-"
+					+ range.getEnd().getLine() + ":" + range.getEnd().getCharacter() + " " + d.getSeverity() + " "
+					+ d.getCode() + " " + d.getSource() + " " + d.getMessage();
+			for (int i = 0; i < s.length(); i++) {
+				h = 31 * h + s.charAt(i);
+			}
+			// keeps diagnostics apart from each other
+			h = 31 * h + '\n';
+		}
+		return Long.toHexString(h);
+	}
+
+	public Set<Path> binaryPaths() {
+		return binaryPaths;
+	}
+
+	public long binaryPathsVersion() {
+		return binaryPathsVersion;
+	}
+
+	public Set<String> unitTypes() {
+		return unitTypes;
+	}
+
+	public MacroCompletionIndex macroIndex() {
+		return macroIndex;
+	}
+}
@@ -0,0 +1,94 @@
+package com.babai.wml.lsp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.babai.wml.core.MacroCall;
+
+/**
+ * Macro calls grouped by file, each file's calls in an interval tree over
+ * their line ranges. Finding the calls overlapping some lines takes
+ * O(log n + k) for the k calls found, instead of a walk over every call of
+ * the workspace.
+ *
+ * The tree is implicit: the calls are sorted by start, the middle one of a
+ * range is the root of that range, and maxEnd[i] is the last line any call
+ * in the subtree rooted at i ends on.
+ */
+public final class CallIndex {
+	private static final Comparator<MacroCall> BY_START = Comparator.comparingInt(MacroCall::startLine)
+			.thenComparingInt(MacroCall::startChar);
+
+	private static final class FileCalls {
+		final MacroCall[] calls;
+		final int[] maxEnd;
+
+		FileCalls(List<MacroCall> list) {
+			calls = list.toArray(new MacroCall[0]);
+			Arrays.sort(calls, BY_START);
+			maxEnd = new int[calls.length];
+			build(0, calls.length);
+		}
+
+		private int build(int lo, int hi) {
+			if (lo >= hi) {
+				return Integer.MIN_VALUE;
+			}
+			int mid = (lo + hi) >>> 1;
+			maxEnd[mid] = Math.max(calls[mid].endLine(), Math.max(build(lo, mid), build(mid + 1, hi)));
+			return maxEnd[mid];
+		}
+
+		void overlapping(int lo, int hi, int fromLine, int toLine, List<MacroCall> result) {
+			if (lo >= hi) {
+				return;
+			}
+			int mid = (lo + hi) >>> 1;
+			// nothing below ends late enough
+			if (maxEnd[mid] < fromLine) {
+				return;
+			}
+			overlapping(lo, mid, fromLine, toLine, result);
+			MacroCall call = calls[mid];
+			// everything after this one starts too late
+			if (call.startLine() > toLine) {
+				return;
+			}
+			if (call.endLine() >= fromLine) {
+				result.add(call);
+			}
+			overlapping(mid + 1, hi, fromLine, toLine, result);
+		}
+	}
+
+	private final Map<String, FileCalls> byUri = new HashMap<>();
+
+	public CallIndex(List<MacroCall> calls) {
+		var grouped = new HashMap<String, List<MacroCall>>();
+		for (MacroCall call : calls) {
+			grouped.computeIfAbsent(call.uri(), uri -> new ArrayList<>()).add(call);
+		}
+		grouped.forEach((uri, list) -> byUri.put(uri, new FileCalls(list)));
+	}
+
+	/** Calls made in the given file, in order. */
+	public List<MacroCall> inFile(String uri) {
+		FileCalls file = byUri.get(uri);
+		return file != null ? List.of(file.calls) : List.of();
+	}
+
+	/** Calls made in the given file that overlap the lines fromLine to toLine, both included, in order. */
+	public List<MacroCall> overlapping(String uri, int fromLine, int toLine) {
+		FileCalls file = byUri.get(uri);
+		if (file == null) {
+			return List.of();
+		}
+		var result = new ArrayList<MacroCall>();
+		file.overlapping(0, file.calls.length, fromLine, toLine, result);
+		return result;
+	}
+}
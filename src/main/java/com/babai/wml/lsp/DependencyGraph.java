@@ -0,0 +1,212 @@
+package com.babai.wml.lsp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.babai.wml.core.MacroTable;
+import com.babai.wml.preprocessor.FileCache;
+import com.babai.wml.preprocessor.FileRecord;
+
+/**
+ * File level dependencies of the workspace: for each parsed file the macros
+ * it defines, the macros it uses and the paths it includes.
+ *
+ * Used as the {@link FileCache} of the workspace parse. A file is only parsed
+ * again if it was edited, changed on disk, or uses a macro whose definition
+ * changed during this parse, or that resolves differently now because the
+ * file defining it was dropped. Everything else is replayed from the last
+ * parse.
+ */
+public class DependencyGraph implements FileCache {
+	private final DocumentStore documents;
+
+	private final Map<Path, FileRecord> records = new HashMap<>();
+	private final Map<Path, Long> mtimes = new HashMap<>();
+	// macro name -> files using it
+	private final Map<String, Set<Path>> users = new HashMap<>();
+
+	private final Set<Path> dirty = new HashSet<>();
+	private final Set<Path> visited = new HashSet<>();
+	// file URI -> its new record, null if dropped, since takeUpdated()
+	private final Map<String, FileRecord> updated = new HashMap<>();
+	private int reused = 0, parsed = 0;
+
+	public DependencyGraph(DocumentStore documents) {
+		this.documents = documents;
+	}
+
+	private static Path key(Path p) {
+		return p.toAbsolutePath().normalize();
+	}
+
+	/** Mark a file as edited, it will be parsed again by the next parse. */
+	public void invalidate(Path file) {
+		dirty.add(key(file));
+	}
+
+	public boolean contains(Path file) {
+		return records.containsKey(key(file));
+	}
+
+	/** Whether the file was parsed or replayed by the current parse. */
+	public boolean isVisited(Path file) {
+		return visited.contains(key(file));
+	}
+
+	public Set<String> definesOf(Path file) {
+		FileRecord rec = records.get(key(file));
+		return rec != null ? rec.definedMacros() : Set.of();
+	}
+
+	public Set<String> usesOf(Path file) {
+		FileRecord rec = records.get(key(file));
+		return rec != null ? rec.usedMacros() : Set.of();
+	}
+
+	public List<Path> includesOf(Path file) {
+		var includes = new ArrayList<Path>();
+		FileRecord rec = records.get(key(file));
+		if (rec != null) {
+			for (var step : rec.steps()) {
+				if (step.isInclude()) {
+					includes.add(step.include());
+				}
+			}
+		}
+		return includes;
+	}
+
+	/** Files that have to be parsed again if the given macro changes. */
+	public Set<Path> usersOf(String macroName) {
+		return users.getOrDefault(macroName, Set.of());
+	}
+
+	public int reusedCount() {
+		return reused;
+	}
+
+	public int parsedCount() {
+		return parsed;
+	}
+
+	public void beginParse() {
+		visited.clear();
+		reused = 0;
+		parsed = 0;
+	}
+
+	/** Forget files that are no longer included from anywhere. */
+	public void endParse() {
+		for (Path p : new ArrayList<>(records.keySet())) {
+			if (!visited.contains(p)) {
+				FileRecord old = records.remove(p);
+				unlink(old);
+				mtimes.remove(p);
+				updated.put(old.uri(), null);
+			}
+		}
+		dirty.clear();
+	}
+
+	/**
+	 * Files parsed or dropped since the last call, by URI, with their new
+	 * record or null if dropped. Those parsed by a cancelled parse are kept
+	 * for the next call, replaying them doesn't bring them up again.
+	 */
+	public Map<String, FileRecord> takeUpdated() {
+		var result = new HashMap<>(updated);
+		updated.clear();
+		return result;
+	}
+
+	@Override
+	public FileRecord lookup(Path file, MacroTable defines) {
+		Path key = key(file);
+		visited.add(key);
+		FileRecord rec = peek(key, defines);
+		if (rec != null) {
+			reused++;
+		}
+		return rec;
+	}
+
+	@Override
+	public FileRecord peek(Path file, MacroTable defines) {
+		Path key = key(file);
+		FileRecord rec = records.get(key);
+		if (rec == null || dirty.contains(key)) {
+			return null;
+		}
+
+		// files not open in the editor may have been changed on disk
+		if (documents.get(key) == null) {
+			try {
+				if (Files.getLastModifiedTime(key).toMillis() != mtimes.getOrDefault(key, -1L)) {
+					return null;
+				}
+			} catch (IOException e) {
+				return null;
+			}
+		}
+		return rec.resolvesSame(defines) ? rec : null;
+	}
+
+	@Override
+	public void store(FileRecord rec) {
+		Path key = key(rec.path());
+		visited.add(key);
+		parsed++;
+
+		FileRecord old = records.put(key, rec);
+		unlink(old);
+		link(key, rec);
+		if (old != null && !old.uri().equals(rec.uri())) {
+			updated.put(old.uri(), null);
+		}
+		updated.put(rec.uri(), rec);
+		dirty.remove(key);
+		try {
+			mtimes.put(key, Files.getLastModifiedTime(key).toMillis());
+		} catch (IOException e) {
+			mtimes.remove(key);
+		}
+
+		// files using a changed macro must be parsed again if they come later
+		for (String name : FileRecord.changedMacros(old, rec)) {
+			for (Path user : usersOf(name)) {
+				if (!user.equals(key)) {
+					dirty.add(user);
+				}
+			}
+		}
+	}
+
+	private void link(Path key, FileRecord rec) {
+		for (String name : rec.usedMacros()) {
+			users.computeIfAbsent(name, k -> new HashSet<>()).add(key);
+		}
+	}
+
+	private void unlink(FileRecord rec) {
+		if (rec == null) {
+			return;
+		}
+		Path key = key(rec.path());
+		for (String name : rec.usedMacros()) {
+			Set<Path> set = users.get(name);
+			if (set != null) {
+				set.remove(key);
+				if (set.isEmpty()) {
+					users.remove(name);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package com.babai.wml.lsp;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
+
+/**
+ * Documents currently open in the editor, keyed by their normalized path so
+ * that the preprocessor can read them instead of the saved file.
+ */
+public class DocumentStore {
+	private final Map<Path, TextDocument> docs = new ConcurrentHashMap<>();
+
+	public static Path toPath(String uri) {
+		return normalize(Path.of(URI.create(uri)));
+	}
+
+	private static Path normalize(Path p) {
+		return p.toAbsolutePath().normalize();
+	}
+
+	public void open(String uri, String text, int version) {
+		docs.put(toPath(uri), new TextDocument(text, version));
+	}
+
+	public void change(String uri, int version, List<TextDocumentContentChangeEvent> changes) {
+		TextDocument doc = docs.get(toPath(uri));
+		if (doc == null) {
+			// change without open, only usable if it carries the full text
+			doc = new TextDocument("", version);
+			docs.put(toPath(uri), doc);
+		}
+		// the parse reads it from another thread
+		synchronized (doc) {
+			for (var change : changes) {
+				doc.apply(change.getRange(), change.getText());
+			}
+			doc.setVersion(version);
+		}
+	}
+
+	public void close(String uri) {
+		docs.remove(toPath(uri));
+	}
+
+	public TextDocument get(String uri) {
+		return docs.get(toPath(uri));
+	}
+
+	public TextDocument get(Path path) {
+		return docs.get(normalize(path));
+	}
+
+	/** Version of every open document, to tell whether any changed since. */
+	public Map<Path, Integer> versions() {
+		var versions = new HashMap<Path, Integer>();
+		docs.forEach((path, doc) -> {
+			synchronized (doc) {
+				versions.put(path, doc.getVersion());
+			}
+		});
+		return versions;
+	}
+
+	/** Unsaved text of the given file, or null if it isn't open. */
+	public String textOf(Path path) {
+		TextDocument doc = get(path);
+		if (doc == null) {
+			return null;
+		}
+		synchronized (doc) {
+			return doc.getText();
+		}
+	}
+}
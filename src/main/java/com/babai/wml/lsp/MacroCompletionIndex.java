@@ -0,0 +1,170 @@
+package com.babai.wml.lsp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.babai.wml.core.MacroTable;
+
+/**
+ * Macro names sorted case insensitively, for completion. A query matches the
+ * names it is a prefix of, and the names whose segments (split at "_" and at
+ * camel case humps) it abbreviates, like ABLE for ABILITY_LEADERSHIP.
+ *
+ * The matches of recent queries are cached, and a query that extends a
+ * cached one only looks at the names the shorter one matched.
+ */
+public final class MacroCompletionIndex {
+	/** Most items of a single completion response. */
+	public static final int MAX_RESULTS = 100;
+	private static final int CACHE_SIZE = 64;
+
+	/** Matching macros, best first, and whether there were more than were returned. */
+	public record Result(List<MacroTable.Entry> entries, boolean incomplete) {
+	}
+
+	// sorted by key, the lower case name
+	private final String[] keys;
+	private final MacroTable.Entry[] entries;
+	// defined in the workspace, not in the core or the -include paths
+	private final boolean[] addon;
+
+	private final Map<String, int[]> cache = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * @param defines      the macros to complete, the first definition of each name is used
+	 * @param workspaceUri URI of the workspace folder, macros defined below it rank as add-on macros
+	 */
+	public MacroCompletionIndex(MacroTable defines, String workspaceUri) {
+		var firsts = new ArrayList<MacroTable.Entry>();
+		defines.forEach(e -> {
+			if (defines.first(e.name()) == e) {
+				firsts.add(e);
+			}
+		});
+		firsts.sort((a, b) -> a.name().compareToIgnoreCase(b.name()));
+
+		keys = new String[firsts.size()];
+		entries = firsts.toArray(new MacroTable.Entry[0]);
+		addon = new boolean[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			keys[i] = entries[i].name().toLowerCase();
+			addon[i] = workspaceUri != null && entries[i].uri().startsWith(workspaceUri);
+		}
+	}
+
+	public int size() {
+		return entries.length;
+	}
+
+	/**
+	 * The macros matching the query, defined in the file localUri first, then
+	 * in the workspace, then elsewhere. Prefix matches come before segment
+	 * matches within each group.
+	 */
+	public Result find(String query, String localUri) {
+		int[] matches = matches(query.toLowerCase());
+		var result = new ArrayList<MacroTable.Entry>(Math.min(matches.length, MAX_RESULTS));
+		for (int rank = 0; rank < 3 && result.size() < MAX_RESULTS; rank++) {
+			for (int i : matches) {
+				if (rank(i, localUri) == rank) {
+					result.add(entries[i]);
+					if (result.size() == MAX_RESULTS) {
+						break;
+					}
+				}
+			}
+		}
+		return new Result(result, matches.length > result.size());
+	}
+
+	private int rank(int i, String localUri) {
+		if (entries[i].uri().equals(localUri)) {
+			return 0;
+		}
+		return addon[i] ? 1 : 2;
+	}
+
+	private synchronized int[] matches(String query) {
+		int[] cached = cache.get(query);
+		if (cached != null) {
+			return cached;
+		}
+
+		int[] result;
+		if (query.isEmpty()) {
+			result = new int[keys.length];
+			Arrays.setAll(result, i -> i);
+		} else {
+			// the names this query can match are among those of the query minus its last char
+			int[] candidates = cache.get(query.substring(0, query.length() - 1));
+			int lo = lowerBound(query);
+			int hi = lowerBound(query + Character.MAX_VALUE);
+			var found = new int[hi - lo + 16];
+			int n = 0;
+			for (int i = lo; i < hi; i++) {
+				found[n++] = i;
+			}
+			String segments = query.replace("_", "");
+			int count = candidates != null ? candidates.length : keys.length;
+			for (int c = 0; c < count; c++) {
+				int i = candidates != null ? candidates[c] : c;
+				if ((i < lo || i >= hi) && matchesSegments(entries[i].name(), keys[i], segments, 0, 0)) {
+					if (n == found.length) {
+						found = Arrays.copyOf(found, n * 2);
+					}
+					found[n++] = i;
+				}
+			}
+			result = Arrays.copyOf(found, n);
+		}
+		cache.put(query, result);
+		return result;
+	}
+
+	private int lowerBound(String key) {
+		int lo = 0, hi = keys.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid].compareTo(key) < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Whether the query, from qi on, can be read as pieces of the name from ki
+	 * on. A piece continues the current segment or starts a later one.
+	 */
+	private static boolean matchesSegments(String name, String key, String query, int ki, int qi) {
+		if (qi == query.length()) {
+			return true;
+		}
+		char c = query.charAt(qi);
+		if (ki < key.length() && key.charAt(ki) == c && matchesSegments(name, key, query, ki + 1, qi + 1)) {
+			return true;
+		}
+		for (int j = ki + 1; j < key.length(); j++) {
+			if (key.charAt(j) == c && isSegmentStart(name, j)
+					&& matchesSegments(name, key, query, j + 1, qi + 1)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isSegmentStart(String name, int i) {
+		char prev = name.charAt(i - 1);
+		return prev == '_' || (Character.isLowerCase(prev) && Character.isUpperCase(name.charAt(i)));
+	}
+}
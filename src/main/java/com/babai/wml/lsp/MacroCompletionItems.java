@@ -0,0 +1,79 @@
+package com.babai.wml.lsp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.eclipse.lsp4j.CompletionItem;
+import org.eclipse.lsp4j.CompletionItemKind;
+import org.eclipse.lsp4j.InsertTextFormat;
+
+import com.babai.wml.core.Definition;
+import com.babai.wml.core.MacroTable;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Completion items for macros. The label of each definition is built once
+ * and kept for as long as the definition is in use, every response gets its
+ * own copies so its ranking doesn't depend on the queries made before it.
+ * Documentation is only looked up when the client resolves an item.
+ */
+public final class MacroCompletionItems {
+	private final Map<Definition, CompletionItem> items = new IdentityHashMap<>();
+
+	/** Items for the macros, in order, sorted by their position in the list. */
+	public synchronized List<CompletionItem> itemsFor(List<MacroTable.Entry> entries) {
+		var result = new ArrayList<CompletionItem>(entries.size());
+		for (var e : entries) {
+			CompletionItem base = items.computeIfAbsent(e.def(), def -> {
+				var created = new CompletionItem(def.name());
+				created.setKind(CompletionItemKind.Method);
+				created.setInsertText(created.getLabel());
+				created.setInsertTextFormat(InsertTextFormat.Snippet);
+				// documentation is added by resolve
+				created.setData(def.getName());
+				return created;
+			});
+			var item = new CompletionItem(base.getLabel());
+			item.setKind(base.getKind());
+			item.setInsertText(base.getInsertText());
+			item.setInsertTextFormat(base.getInsertTextFormat());
+			item.setData(base.getData());
+			// keep the server's ranking, the client would sort by label
+			item.setSortText(String.format("%04d", result.size()));
+			result.add(item);
+		}
+		return result;
+	}
+
+	/** Drop the items of definitions that aren't in the table anymore. */
+	public synchronized void retain(MacroTable defines) {
+		var current = Collections.newSetFromMap(new IdentityHashMap<Definition, Boolean>());
+		defines.forEach(e -> current.add(e.def()));
+		items.keySet().retainAll(current);
+	}
+
+	/** Definitions items are kept for. */
+	public synchronized int size() {
+		return items.size();
+	}
+
+	/**
+	 * Add the documentation to a macro item, the macro is looked up by the
+	 * name the item carries. Other items are returned as they are.
+	 */
+	public static CompletionItem resolve(CompletionItem item, Function<String, Definition> lookup) {
+		Object data = item.getData();
+		String name = data instanceof JsonPrimitive json ? json.getAsString()
+				: data instanceof String str ? str : null;
+		Definition def = name != null ? lookup.apply(name) : null;
+		if (def != null) {
+			String docs = def.getDocs();
+			item.setDocumentation(def.name() + (docs != null && !docs.isEmpty() ? ("\n" + docs) : ""));
+		}
+		return item;
+	}
+}
@@ -0,0 +1,273 @@
+package com.babai.wml.lsp;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.babai.wml.utils.FS;
+
+/**
+ * The files below the workspace, the data directories and the binary paths,
+ * as the paths WML refers to them by, for path completion. Directories are
+ * walked on a background thread, and kept up to date by a WatchService and
+ * by the file events the client sends.
+ */
+public final class PathIndex implements Closeable {
+	/** Asset folders of a binary path, their files are named relative to them. */
+	private static final String[] ASSET_DIRS = { "images", "music", "sounds", "maps" };
+
+	private final Logger log = Logger.getLogger("lsp.paths");
+	private final PathTrie trie = new PathTrie();
+
+	// a directory indexed with its paths starting with prefix
+	private record Root(int id, Path dir, String prefix) {
+	}
+
+	private final List<Root> roots = new ArrayList<>();
+	private final Map<WatchKey, Path> watched = new HashMap<>();
+	private final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+	// tasks queued and not done yet
+	private final AtomicInteger pending = new AtomicInteger();
+	private WatchService watcher;
+	private Thread thread;
+	private volatile boolean closed = false;
+	private volatile Runnable onChange;
+
+	/** Start indexing, and watching the indexed directories if watch is set. */
+	public synchronized void start(boolean watch) {
+		if (thread != null) {
+			return;
+		}
+		if (watch) {
+			try {
+				watcher = FileSystems.getDefault().newWatchService();
+			} catch (IOException e) {
+				log.warning("Can't watch the file system, path completion may get out of date: " + e);
+			}
+		}
+		thread = new Thread(this::run, "path-index");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		if (watcher != null) {
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/** Index the files below dir, named with the given prefix. Does nothing if dir is indexed already. */
+	public synchronized void addRoot(Path dir, String prefix) {
+		Path normalized = dir.toAbsolutePath().normalize();
+		for (Root r : roots) {
+			if (r.dir.equals(normalized)) {
+				return;
+			}
+		}
+		var root = new Root(roots.size(), normalized, prefix);
+		roots.add(root);
+		queue(() -> walk(root, root.dir));
+	}
+
+	/** Index the asset folders of a binary path. */
+	public void addBinaryPath(Path dir) {
+		for (String assets : ASSET_DIRS) {
+			Path assetDir = dir.resolve(assets);
+			if (Files.isDirectory(assetDir)) {
+				addRoot(assetDir, "");
+			}
+		}
+	}
+
+	/** Run the listener, on the indexing thread, after each file event that was looked at. */
+	public void onChange(Runnable listener) {
+		this.onChange = listener;
+	}
+
+	/** A file was created or deleted, as told by the client. */
+	public void changed(Path file, boolean deleted) {
+		Path normalized = file.toAbsolutePath().normalize();
+		queue(() -> update(normalized, deleted));
+	}
+
+	private void queue(Runnable task) {
+		pending.incrementAndGet();
+		tasks.add(task);
+	}
+
+	/**
+	 * Paths starting with the prefix, directories and files of the given asset
+	 * type ("images", "sounds"... as in FS.getAssetType, null for any).
+	 */
+	public List<String> find(String prefix, String assetType, int limit) {
+		return trie.find(prefix, limit,
+				p -> assetType == null || p.endsWith("/") || FS.getAssetType(p).equals(assetType));
+	}
+
+	/** Number of indexed paths. */
+	public int size() {
+		return trie.size();
+	}
+
+	/** Whether all queued directories have been walked. */
+	public boolean isIdle() {
+		return pending.get() == 0;
+	}
+
+	private void run() {
+		try {
+			while (!closed) {
+				Runnable task = tasks.poll(watcher != null ? 0 : 1, TimeUnit.SECONDS);
+				if (task != null) {
+					try {
+						task.run();
+					} finally {
+						pending.decrementAndGet();
+					}
+					continue;
+				}
+				if (watcher != null) {
+					WatchKey key = watcher.poll(100, TimeUnit.MILLISECONDS);
+					if (key != null) {
+						handle(key);
+					}
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// closed
+		}
+	}
+
+	private void handle(WatchKey key) {
+		Path dir;
+		synchronized (this) {
+			dir = watched.get(key);
+		}
+		for (var event : key.pollEvents()) {
+			if (dir == null) {
+				break;
+			}
+			if (event.kind() == OVERFLOW) {
+				// lost track of this directory, read it again
+				update(dir, false);
+			} else {
+				update(dir.resolve((Path) event.context()), event.kind() == ENTRY_DELETE);
+			}
+		}
+		if (!key.reset()) {
+			synchronized (this) {
+				watched.remove(key);
+			}
+		}
+	}
+
+	private void update(Path file, boolean deleted) {
+		List<Root> containing = new ArrayList<>();
+		synchronized (this) {
+			for (Root r : roots) {
+				if (file.startsWith(r.dir)) {
+					containing.add(r);
+				}
+			}
+		}
+		for (Root r : containing) {
+			String key = key(r, file);
+			if (file.equals(r.dir)) {
+				if (!deleted) {
+					walk(r, file);
+				}
+			} else if (deleted || !Files.exists(file)) {
+				trie.remove(key, r.id);
+				trie.removeAll(key + "/", r.id);
+			} else if (Files.isDirectory(file)) {
+				walk(r, file);
+			} else {
+				trie.add(key, r.id);
+			}
+		}
+		Runnable listener = onChange;
+		if (listener != null) {
+			listener.run();
+		}
+	}
+
+	private static String key(Root root, Path file) {
+		return root.prefix + root.dir.relativize(file).toString().replace('\\', '/');
+	}
+
+	private void walk(Root root, Path start) {
+		try {
+			Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+					if (!dir.equals(root.dir)) {
+						if (dir.getFileName().toString().startsWith(".")) {
+							return FileVisitResult.SKIP_SUBTREE;
+						}
+						trie.add(key(root, dir) + "/", root.id);
+					}
+					watch(dir);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if (!file.getFileName().toString().startsWith(".")) {
+						trie.add(key(root, file), root.id);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			log.warning("Can't index " + start + ": " + e);
+		}
+	}
+
+	private void watch(Path dir) {
+		if (watcher == null) {
+			return;
+		}
+		try {
+			WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, OVERFLOW);
+			synchronized (this) {
+				watched.put(key, dir);
+			}
+		} catch (IOException | ClosedWatchServiceException e) {
+			// not watched, the client's file events still update it
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package com.babai.wml.lsp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Radix tree of relative paths, "/" separated, with a trailing "/" for
+ * directories. Paths sharing a prefix share the nodes of that prefix, so a
+ * prefix query walks down to a single node and only looks at what is below
+ * it. Each path remembers which roots it was found in, and stays until it is
+ * removed from all of them.
+ */
+public final class PathTrie {
+	private static final Node[] NONE = new Node[0];
+	private static final long[] NO_ROOTS = new long[0];
+
+	private static final class Node {
+		String label;
+		// sorted by the first char of their label, which is unique among siblings
+		Node[] children = NONE;
+		// bits of the roots a path ending here is in, without trailing 0 words,
+		// so empty if none is
+		long[] roots = NO_ROOTS;
+
+		Node(String label) {
+			this.label = label;
+		}
+
+		boolean isPath() {
+			return roots.length > 0;
+		}
+
+		void addRoot(int root) {
+			int word = root >>> 6;
+			if (word >= roots.length) {
+				roots = Arrays.copyOf(roots, word + 1);
+			}
+			roots[word] |= 1L << root;
+		}
+
+		void removeRoot(int root) {
+			int word = root >>> 6;
+			if (word >= roots.length) {
+				return;
+			}
+			roots[word] &= ~(1L << root);
+			int n = roots.length;
+			while (n > 0 && roots[n - 1] == 0) {
+				n--;
+			}
+			if (n < roots.length) {
+				roots = n == 0 ? NO_ROOTS : Arrays.copyOf(roots, n);
+			}
+		}
+	}
+
+	private final Node root = new Node("");
+	private int size;
+
+	/** Number of paths. */
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized void add(String path, int root) {
+		Node node = this.root;
+		int i = 0;
+		while (i < path.length()) {
+			int c = indexOf(node, path.charAt(i));
+			if (c < 0) {
+				var leaf = new Node(path.substring(i));
+				insert(node, -c - 1, leaf);
+				node = leaf;
+				break;
+			}
+			Node child = node.children[c];
+			int common = commonPrefix(child.label, path, i);
+			if (common < child.label.length()) {
+				// split the edge where the new path leaves it
+				var mid = new Node(child.label.substring(0, common));
+				child.label = child.label.substring(common);
+				mid.children = new Node[] { child };
+				node.children[c] = mid;
+				child = mid;
+			}
+			node = child;
+			i += common;
+		}
+		if (!node.isPath()) {
+			size++;
+		}
+		node.addRoot(root);
+	}
+
+	public synchronized boolean contains(String path) {
+		Node node = find(path);
+		return node != null && node.isPath();
+	}
+
+	/** Remove the path from the given root. */
+	public synchronized void remove(String path, int root) {
+		remove(this.root, path, 0, root, false);
+	}
+
+	/** Remove every path starting with the prefix from the given root. */
+	public synchronized void removeAll(String prefix, int root) {
+		remove(this.root, prefix, 0, root, true);
+	}
+
+	/**
+	 * Paths starting with the prefix that the filter accepts, in sorted order,
+	 * at most limit of them.
+	 */
+	public synchronized List<String> find(String prefix, int limit, Predicate<String> filter) {
+		var result = new ArrayList<String>();
+		Node node = root;
+		int i = 0;
+		var path = new StringBuilder();
+		while (i < prefix.length()) {
+			int c = indexOf(node, prefix.charAt(i));
+			if (c < 0) {
+				return result;
+			}
+			Node child = node.children[c];
+			int common = commonPrefix(child.label, prefix, i);
+			if (i + common < prefix.length() && common < child.label.length()) {
+				return result;
+			}
+			path.append(child.label);
+			node = child;
+			i += common;
+		}
+		collect(node, path, limit, filter, result);
+		return result;
+	}
+
+	private static void collect(Node node, StringBuilder path, int limit, Predicate<String> filter, List<String> result) {
+		if (node.isPath()) {
+			String p = path.toString();
+			if (filter.test(p)) {
+				result.add(p);
+			}
+		}
+		for (Node child : node.children) {
+			if (result.size() >= limit) {
+				return;
+			}
+			int length = path.length();
+			path.append(child.label);
+			collect(child, path, limit, filter, result);
+			path.setLength(length);
+		}
+	}
+
+	// for contains, the node a full path ends on, null if none
+	private Node find(String path) {
+		Node node = root;
+		int i = 0;
+		while (i < path.length()) {
+			int c = indexOf(node, path.charAt(i));
+			if (c < 0) {
+				return null;
+			}
+			Node child = node.children[c];
+			if (!path.startsWith(child.label, i)) {
+				return null;
+			}
+			node = child;
+			i += child.label.length();
+		}
+		return node;
+	}
+
+	/** Returns whether the node is left without paths and can be dropped. */
+	private boolean remove(Node node, String path, int i, int root, boolean subtree) {
+		if (i >= path.length()) {
+			if (subtree) {
+				clear(node, root);
+			} else if (node.isPath()) {
+				node.removeRoot(root);
+				if (!node.isPath()) {
+					size--;
+				}
+			}
+		} else {
+			int c = indexOf(node, path.charAt(i));
+			if (c < 0) {
+				return false;
+			}
+			Node child = node.children[c];
+			int common = commonPrefix(child.label, path, i);
+			boolean within = subtree && i + common == path.length();
+			if (common < child.label.length() && !within) {
+				return false;
+			}
+			if (remove(child, path, within ? path.length() : i + common, root, subtree)) {
+				drop(node, c);
+			} else {
+				merge(node, c);
+			}
+		}
+		return node != this.root && !node.isPath() && node.children.length == 0;
+	}
+
+	private void clear(Node node, int root) {
+		if (node.isPath()) {
+			node.removeRoot(root);
+			if (!node.isPath()) {
+				size--;
+			}
+		}
+		for (int c = node.children.length - 1; c >= 0; c--) {
+			Node child = node.children[c];
+			clear(child, root);
+			if (!child.isPath() && child.children.length == 0) {
+				drop(node, c);
+			} else {
+				merge(node, c);
+			}
+		}
+	}
+
+	// a child left with no path of its own and a single child becomes one edge
+	private static void merge(Node parent, int c) {
+		Node child = parent.children[c];
+		if (!child.isPath() && child.children.length == 1) {
+			Node only = child.children[0];
+			only.label = child.label + only.label;
+			parent.children[c] = only;
+		}
+	}
+
+	private static void drop(Node parent, int c) {
+		Node[] rest = new Node[parent.children.length - 1];
+		System.arraycopy(parent.children, 0, rest, 0, c);
+		System.arraycopy(parent.children, c + 1, rest, c, rest.length - c);
+		parent.children = rest.length == 0 ? NONE : rest;
+	}
+
+	private static void insert(Node parent, int at, Node child) {
+		Node[] children = Arrays.copyOf(parent.children, parent.children.length + 1);
+		System.arraycopy(children, at, children, at + 1, parent.children.length - at);
+		children[at] = child;
+		parent.children = children;
+	}
+
+	/** Index of the child starting with c, or -(insertion point) - 1. */
+	private static int indexOf(Node node, char c) {
+		int lo = 0, hi = node.children.length - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			char m = node.children[mid].label.charAt(0);
+			if (m < c) {
+				lo = mid + 1;
+			} else if (m > c) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -lo - 1;
+	}
+
+	private static int commonPrefix(String label, String path, int from) {
+		int n = Math.min(label.length(), path.length() - from);
+		int i = 0;
+		while (i < n && label.charAt(i) == path.charAt(from + i)) {
+			i++;
+		}
+		return i;
+	}
+}
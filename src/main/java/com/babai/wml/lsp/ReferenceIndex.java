@@ -0,0 +1,66 @@
+package com.babai.wml.lsp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.babai.wml.core.MacroCall;
+
+/**
+ * Who uses a macro: the calls made to it in each file, those in the body of
+ * another macro's #define included, the parser records which macro that is.
+ * The reverse of the name to definition lookup, kept per file. After each
+ * parse only the files the dependency graph parsed again or dropped are
+ * replaced, the rest keep their calls.
+ */
+public final class ReferenceIndex {
+	private final Map<String, List<MacroCall>> files = new HashMap<>();
+	// macro name -> file URI -> calls to it made in that file
+	private final Map<String, Map<String, List<MacroCall>>> callers = new HashMap<>();
+	private int updatedCount = 0;
+
+	/** Replace the calls made in the file, none drops it from the index. */
+	public synchronized void setCalls(String uri, List<MacroCall> calls) {
+		List<MacroCall> old = files.getOrDefault(uri, List.of());
+		if (old.equals(calls)) {
+			return;
+		}
+		for (MacroCall call : old) {
+			var byFile = callers.get(call.name());
+			if (byFile != null && byFile.remove(uri) != null && byFile.isEmpty()) {
+				callers.remove(call.name());
+			}
+		}
+		for (MacroCall call : calls) {
+			callers.computeIfAbsent(call.name(), name -> new HashMap<>())
+					.computeIfAbsent(uri, u -> new ArrayList<>()).add(call);
+		}
+		if (calls.isEmpty()) {
+			files.remove(uri);
+		} else {
+			files.put(uri, List.copyOf(calls));
+		}
+		updatedCount++;
+	}
+
+	/** Calls made to the macro, grouped by the file they are in. */
+	public synchronized Map<String, List<MacroCall>> callsTo(String name) {
+		var byFile = callers.get(name);
+		var result = new HashMap<String, List<MacroCall>>();
+		if (byFile != null) {
+			byFile.forEach((uri, calls) -> result.put(uri, List.copyOf(calls)));
+		}
+		return result;
+	}
+
+	/** Calls made in the file, in order, those in macro bodies included. */
+	public synchronized List<MacroCall> callsIn(String uri) {
+		return files.getOrDefault(uri, List.of());
+	}
+
+	/** Files indexed again so far, those that hadn't changed not counted. */
+	public synchronized int updatedCount() {
+		return updatedCount;
+	}
+}
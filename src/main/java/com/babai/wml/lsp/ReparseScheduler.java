@@ -0,0 +1,124 @@
+package com.babai.wml.lsp;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Runs the workspace parse on a background thread, some time after the last
+ * edit, so that a burst of keystrokes ends up as a single parse. An edit
+ * arriving while a parse runs cancels it, and the next parse takes over the
+ * files it was given.
+ */
+public final class ReparseScheduler implements Closeable {
+	/** Milliseconds to wait for more edits unless set otherwise. */
+	public static final long DEFAULT_DELAY = 300;
+
+	/** Parse after the given files changed, giving up with a CancellationException once cancelled is true. */
+	public interface Task {
+		void run(Set<Path> changed, BooleanSupplier cancelled) throws Exception;
+	}
+
+	private final Logger log = Logger.getLogger("lsp.reparse");
+	private final Task task;
+	private final ScheduledExecutorService executor;
+	private volatile long delayMillis;
+
+	// changed files no parse has taken yet
+	private final Set<Path> pending = new LinkedHashSet<>();
+	private ScheduledFuture<?> next;
+	// set to cancel the parse that is running, null if none is
+	private AtomicBoolean running;
+	private int completed = 0, cancelled = 0;
+
+	public ReparseScheduler(Task task, long delayMillis) {
+		this.task = task;
+		this.delayMillis = delayMillis;
+		this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			var t = new Thread(r, "reparse");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/** Time to wait for more edits before parsing. */
+	public void setDelay(long millis) {
+		this.delayMillis = Math.max(0, millis);
+	}
+
+	/** Parse after the delay, cancelling the running parse if any. */
+	public synchronized void schedule(Path changed) {
+		pending.add(changed);
+		if (running != null) {
+			running.set(true);
+		}
+		if (next != null) {
+			next.cancel(false);
+		}
+		next = executor.schedule(this::fire, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** Whether nothing is scheduled or running. */
+	public synchronized boolean isIdle() {
+		return pending.isEmpty() && running == null;
+	}
+
+	public synchronized int completedCount() {
+		return completed;
+	}
+
+	public synchronized int cancelledCount() {
+		return cancelled;
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (running != null) {
+				running.set(true);
+			}
+		}
+		executor.shutdownNow();
+	}
+
+	private void fire() {
+		Set<Path> changed;
+		AtomicBoolean flag = new AtomicBoolean();
+		synchronized (this) {
+			changed = new LinkedHashSet<>(pending);
+			pending.clear();
+			next = null;
+			running = flag;
+		}
+		try {
+			task.run(changed, flag::get);
+			synchronized (this) {
+				completed++;
+			}
+		} catch (CancellationException e) {
+			// superseded, the parse scheduled after it does these files too
+			synchronized (this) {
+				cancelled++;
+				var carried = new LinkedHashSet<>(changed);
+				carried.addAll(pending);
+				pending.clear();
+				pending.addAll(carried);
+			}
+		} catch (Exception e) {
+			log.warning("Parsing " + changed + " failed: " + e);
+		} finally {
+			synchronized (this) {
+				running = null;
+			}
+		}
+	}
+}
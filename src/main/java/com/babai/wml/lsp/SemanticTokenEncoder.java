@@ -0,0 +1,139 @@
+package com.babai.wml.lsp;
+
+import static com.babai.wml.preprocessor.PreprocessorConstants.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.lsp4j.SemanticTokenModifiers;
+import org.eclipse.lsp4j.SemanticTokenTypes;
+import org.eclipse.lsp4j.SemanticTokensEdit;
+import org.eclipse.lsp4j.SemanticTokensLegend;
+
+import com.babai.wml.preprocessor.TokenStream;
+
+/**
+ * Semantic tokens of a document, read off its token stream: tags, macro
+ * names, directives, comments and paths. The result is the LSP encoding of
+ * five ints per token, each position relative to the token before.
+ */
+public final class SemanticTokenEncoder {
+	public static final int TYPE_TAG = 0;
+	public static final int TYPE_MACRO = 1;
+	public static final int TYPE_KEYWORD = 2;
+	public static final int TYPE_COMMENT = 3;
+	public static final int TYPE_PATH = 4;
+
+	public static final int MOD_DECLARATION = 1;
+
+	public static final SemanticTokensLegend LEGEND = new SemanticTokensLegend(
+			List.of(SemanticTokenTypes.Type, SemanticTokenTypes.Macro, SemanticTokenTypes.Keyword,
+					SemanticTokenTypes.Comment, SemanticTokenTypes.String),
+			List.of(SemanticTokenModifiers.Declaration));
+
+	// directives lexed as plain strings
+	private static final Set<String> DIRECTIVES = Set.of("ifndef", "ifhave", "ifnhave", "ifver", "ifnver", "else",
+			"error", "warning");
+
+	private final TokenStream tokens;
+	private final List<Integer> data;
+	private int lastLine, lastColumn;
+
+	private SemanticTokenEncoder(TokenStream tokens) {
+		this.tokens = tokens;
+		this.data = new ArrayList<>(tokens.size());
+	}
+
+	public static List<Integer> encode(TokenStream tokens) {
+		var encoder = new SemanticTokenEncoder(tokens);
+		encoder.run();
+		return encoder.data;
+	}
+
+	private void run() {
+		int n = tokens.size();
+		for (int i = 0; i < n; i++) {
+			switch (tokens.kind(i)) {
+			case STAG:
+			case ETAG:
+				add(i, tokens.length(i), TYPE_TAG, 0);
+				break;
+			case PATH:
+				add(i, tokens.length(i), TYPE_PATH, 0);
+				break;
+			case LBR:
+				if (i + 1 < n && tokens.kind(i + 1) == STRING) {
+					i++;
+					add(i, tokens.length(i), TYPE_MACRO, 0);
+				}
+				break;
+			case ARG:
+			case ENDARG:
+				add(i, tokens.length(i), TYPE_KEYWORD, 0);
+				break;
+			case HASH:
+				i = hash(i);
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	// a directive with the macro it names, or a comment up to the end of the line
+	private int hash(int i) {
+		int n = tokens.size();
+		int d = i + 1;
+		int kind = d < n ? tokens.kind(d) : EOF;
+		boolean directive = kind == DEFINE || kind == ENDDEF || kind == IFDEF || kind == ENDIF || kind == UNDEF
+				|| kind == TEXTDOMAIN || (kind == STRING && DIRECTIVES.contains(tokens.image(d)));
+		if (!directive) {
+			int end = i;
+			while (end + 1 < n && tokens.kind(end + 1) != EOL) {
+				end++;
+			}
+			add(i, tokens.end(end) - tokens.offset(i), TYPE_COMMENT, 0);
+			return end;
+		}
+		add(i, tokens.end(d) - tokens.offset(i), TYPE_KEYWORD, 0);
+		boolean namesMacro = kind == DEFINE || kind == IFDEF || kind == UNDEF
+				|| (kind == STRING && tokens.image(d).equals("ifndef"));
+		if (namesMacro && d + 2 < n && tokens.kind(d + 1) == SPACE && tokens.kind(d + 2) == STRING) {
+			add(d + 2, tokens.length(d + 2), TYPE_MACRO, kind == DEFINE ? MOD_DECLARATION : 0);
+			return d + 2;
+		}
+		return d;
+	}
+
+	private void add(int i, int length, int type, int modifiers) {
+		int line = tokens.line(i);
+		int column = tokens.column(i);
+		data.add(line - lastLine);
+		data.add(line == lastLine ? column - lastColumn : column);
+		data.add(length);
+		data.add(type);
+		data.add(modifiers);
+		lastLine = line;
+		lastColumn = column;
+	}
+
+	/** The edit turning one encoding into the other, null if they are the same. */
+	public static SemanticTokensEdit diff(List<Integer> before, List<Integer> after) {
+		int prefix = 0;
+		int max = Math.min(before.size(), after.size());
+		while (prefix < max && before.get(prefix).equals(after.get(prefix))) {
+			prefix++;
+		}
+		if (prefix == before.size() && prefix == after.size()) {
+			return null;
+		}
+		int suffix = 0;
+		while (suffix < max - prefix
+				&& before.get(before.size() - 1 - suffix).equals(after.get(after.size() - 1 - suffix))) {
+			suffix++;
+		}
+		return new SemanticTokensEdit(prefix, before.size() - prefix - suffix,
+				new ArrayList<>(after.subList(prefix, after.size() - suffix)));
+	}
+}
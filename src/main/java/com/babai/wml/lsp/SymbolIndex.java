@@ -0,0 +1,244 @@
+package com.babai.wml.lsp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import com.babai.wml.core.MacroTable;
+
+/**
+ * Workspace symbols, found by fuzzy name search in a trigram index: each
+ * trigram of a lower case name lists the symbols having it. A query only
+ * looks at the symbols sharing most of its trigrams, so a typo or a missing
+ * char still finds the name, and ranks exact, prefix and substring matches
+ * before the rest.
+ *
+ * Symbols come in groups by source, like the file that defined them. Setting
+ * the symbols of a source only indexes those that weren't there before, and
+ * removed ones are dropped from the posting lists in bulk once they make up
+ * half of the index.
+ */
+public final class SymbolIndex {
+	/** Most symbols returned by a query. */
+	public static final int MAX_RESULTS = 100;
+
+	public enum Kind {
+		MACRO, TAG, UNIT_TYPE
+	}
+
+	/** A symbol found at the given 0 based line of uri, line is -1 if uri isn't a file. */
+	public record Symbol(String name, Kind kind, String uri, int line) {
+	}
+
+	private static final Comparator<Symbol> BY_NAME = Comparator.comparing(Symbol::name,
+			String.CASE_INSENSITIVE_ORDER);
+
+	// by id, null once removed
+	private final List<Symbol> symbols = new ArrayList<>();
+	private final List<String> keys = new ArrayList<>();
+	private final Map<Symbol, Integer> ids = new HashMap<>();
+	private final Map<Long, int[]> postings = new HashMap<>();
+	private int removed = 0;
+
+	private final Map<String, Set<Symbol>> sources = new HashMap<>();
+
+	public synchronized int size() {
+		return ids.size();
+	}
+
+	/** Replace the symbols of a source, indexing only what changed. */
+	public synchronized void setSymbols(String source, Collection<Symbol> list) {
+		var next = new HashSet<>(list);
+		var previous = sources.getOrDefault(source, Set.of());
+		if (previous.equals(next)) {
+			return;
+		}
+		for (Symbol s : previous) {
+			if (!next.contains(s)) {
+				remove(s);
+			}
+		}
+		for (Symbol s : next) {
+			if (!previous.contains(s)) {
+				add(s);
+			}
+		}
+		if (next.isEmpty()) {
+			sources.remove(source);
+		} else {
+			sources.put(source, next);
+		}
+		if (removed > ids.size()) {
+			compact();
+		}
+	}
+
+	/**
+	 * Index the macros changed from one parse to the next, each file as a
+	 * source. Only the files defining a changed name, or parsed again, are
+	 * set again, the others still have the same definitions.
+	 */
+	public synchronized void setMacros(MacroTable before, MacroTable after, Collection<String> reparsed) {
+		var uris = new HashSet<>(reparsed);
+		for (String name : MacroTable.changedNames(before, after)) {
+			var was = before.get(name);
+			var is = after.get(name);
+			// a replayed file adds the same definitions again
+			if (!was.equals(is)) {
+				was.forEach(e -> uris.add(e.uri()));
+				is.forEach(e -> uris.add(e.uri()));
+			}
+		}
+		for (String uri : uris) {
+			var list = new ArrayList<Symbol>();
+			for (MacroTable.Entry e : after.inFile(uri)) {
+				list.add(new Symbol(e.name(), Kind.MACRO, e.uri(), e.line()));
+			}
+			setSymbols(uri, list);
+		}
+	}
+
+	private void add(Symbol s) {
+		if (ids.containsKey(s)) {
+			return;
+		}
+		int id = symbols.size();
+		String key = s.name().toLowerCase();
+		symbols.add(s);
+		keys.add(key);
+		ids.put(s, id);
+		for (long gram : trigrams(key)) {
+			int[] list = postings.get(gram);
+			if (list == null) {
+				list = new int[4];
+			} else if (list[0] + 1 == list.length) {
+				list = Arrays.copyOf(list, list.length * 2);
+			}
+			// list[0] is the count, ids follow in increasing order
+			list[++list[0]] = id;
+			postings.put(gram, list);
+		}
+	}
+
+	private void remove(Symbol s) {
+		Integer id = ids.remove(s);
+		if (id != null) {
+			symbols.set(id, null);
+			removed++;
+		}
+	}
+
+	// index the symbols left again, without the gaps
+	private void compact() {
+		var live = new ArrayList<Symbol>(ids.size());
+		for (Symbol s : symbols) {
+			if (s != null) {
+				live.add(s);
+			}
+		}
+		symbols.clear();
+		keys.clear();
+		ids.clear();
+		postings.clear();
+		removed = 0;
+		live.forEach(this::add);
+	}
+
+	/** Distinct trigrams of the lower case name, each packed into a long. */
+	private static long[] trigrams(String key) {
+		var grams = new HashSet<Long>();
+		for (int i = 0; i + 3 <= key.length(); i++) {
+			grams.add(((long) key.charAt(i) << 32) | ((long) key.charAt(i + 1) << 16) | key.charAt(i + 2));
+		}
+		long[] result = new long[grams.size()];
+		int n = 0;
+		for (long g : grams) {
+			result[n++] = g;
+		}
+		return result;
+	}
+
+	/** The symbols whose name matches the query best, at most MAX_RESULTS of them. */
+	public synchronized List<Symbol> find(String query) {
+		String q = query.toLowerCase();
+		long[] grams = trigrams(q);
+		// lower is better, the match rank plus how little the trigrams agree
+		double[] score = new double[symbols.size()];
+		Comparator<Integer> better = Comparator.comparingDouble((Integer id) -> score[id])
+				.thenComparingInt(id -> keys.get(id).length())
+				.thenComparing(id -> symbols.get(id), BY_NAME);
+		// the best ones so far, worst on top
+		var best = new PriorityQueue<Integer>(MAX_RESULTS + 1, better.reversed());
+
+		if (grams.length == 0) {
+			// too short for trigrams, few enough names contain it to look at all of them
+			for (int id = 0; id < symbols.size(); id++) {
+				if (symbols.get(id) != null && keys.get(id).contains(q)) {
+					score[id] = matchRank(keys.get(id), q);
+					offer(best, better, id);
+				}
+			}
+		} else {
+			int[] hits = new int[symbols.size()];
+			var touched = new ArrayList<Integer>();
+			for (long gram : grams) {
+				int[] list = postings.get(gram);
+				if (list == null) {
+					continue;
+				}
+				for (int k = 1; k <= list[0]; k++) {
+					if (hits[list[k]]++ == 0) {
+						touched.add(list[k]);
+					}
+				}
+			}
+			// a typo costs up to three trigrams, so allow one in three missing
+			int needed = Math.max(1, grams.length - grams.length / 3);
+			for (int id : touched) {
+				if (symbols.get(id) == null || hits[id] < needed) {
+					continue;
+				}
+				String key = keys.get(id);
+				int nameGrams = Math.max(0, key.length() - 2);
+				double similarity = hits[id] / (double) (grams.length + nameGrams - hits[id]);
+				score[id] = matchRank(key, q) + 1 - similarity;
+				offer(best, better, id);
+			}
+		}
+
+		var result = new ArrayList<Symbol>(best.size());
+		while (!best.isEmpty()) {
+			result.add(symbols.get(best.poll()));
+		}
+		Collections.reverse(result);
+		return result;
+	}
+
+	private static void offer(PriorityQueue<Integer> best, Comparator<Integer> better, int id) {
+		if (best.size() == MAX_RESULTS && better.compare(id, best.peek()) >= 0) {
+			return;
+		}
+		best.add(id);
+		if (best.size() > MAX_RESULTS) {
+			best.poll();
+		}
+	}
+
+	private static int matchRank(String key, String query) {
+		if (key.equals(query)) {
+			return 0;
+		}
+		if (key.startsWith(query)) {
+			return 1;
+		}
+		return key.contains(query) ? 2 : 3;
+	}
+}
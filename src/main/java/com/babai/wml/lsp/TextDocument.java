@@ -0,0 +1,311 @@
+package com.babai.wml.lsp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+
+import com.babai.wml.preprocessor.TokenStream;
+
+/**
+ * Text of a document open in the editor. Edits go into a piece table over the
+ * text received on open plus an append-only buffer of inserted text, and a
+ * table of line start offsets is patched along with each edit. Positions are
+ * converted to offsets in O(1) and back in O(log n), and lines are sliced
+ * from the pieces, without flattening the text.
+ *
+ * The pieces are a plain list, so an edit costs O(pieces). Once there are more
+ * than MAX_PIECES of them the text is flattened back into one piece, which
+ * bounds that cost between the flattens parsing does anyway.
+ *
+ * The document's tokens are kept as well once asked for. Edits since then
+ * are merged into one changed span, and the next call to tokens() lexes
+ * only around it.
+ */
+public class TextDocument {
+	private record Piece(boolean added, int start, int length) {
+	}
+
+	private static final int MAX_PIECES = 256;
+
+	private String original;
+	private final StringBuilder added = new StringBuilder();
+	private final List<Piece> pieces = new ArrayList<>();
+	private int length;
+	private int version;
+
+	// Offset of the first character of each line, lineStarts[0] is always 0
+	private int[] lineStarts = new int[16];
+	private int lineCount;
+
+	// Flattened text, null after an edit until asked for again
+	private String text;
+
+	// Tokens of an earlier text, null until asked for
+	private TokenStream tokens;
+	// [editStart, editOldEnd) of the tokens' text became [editStart, editNewEnd), editStart is -1 without edits
+	private int editStart = -1, editOldEnd, editNewEnd;
+
+	public TextDocument(String text, int version) {
+		setText(text);
+		this.version = version;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public void setVersion(int version) {
+		this.version = version;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public int lineCount() {
+		return lineCount;
+	}
+
+	/** Apply an LSP content change, a null range replaces the whole text. */
+	public void apply(Range range, String newText) {
+		if (range == null) {
+			setText(newText);
+		} else {
+			replace(offsetAt(range.getStart()), offsetAt(range.getEnd()), newText);
+		}
+	}
+
+	/** Replace the characters in [start, end) with the given text. */
+	public void replace(int start, int end, String s) {
+		start = Math.max(0, Math.min(start, length));
+		end = Math.max(start, Math.min(end, length));
+
+		var result = new ArrayList<Piece>(pieces.size() + 2);
+		int pos = 0;
+		boolean inserted = false;
+		for (Piece p : pieces) {
+			int pEnd = pos + p.length;
+			if (pEnd <= start || pos >= end) {
+				// piece entirely outside the replaced range
+				if (!inserted && pos >= end) {
+					insertPiece(result, s);
+					inserted = true;
+				}
+				result.add(p);
+			} else {
+				// keep the parts of the piece before and after the range
+				if (pos < start) {
+					result.add(new Piece(p.added, p.start, start - pos));
+				}
+				if (!inserted) {
+					insertPiece(result, s);
+					inserted = true;
+				}
+				if (pEnd > end) {
+					result.add(new Piece(p.added, p.start + (end - pos), pEnd - end));
+				}
+			}
+			pos = pEnd;
+		}
+		if (!inserted) {
+			insertPiece(result, s);
+		}
+		pieces.clear();
+		pieces.addAll(result);
+
+		updateLines(start, end, s);
+		length += s.length() - (end - start);
+		text = null;
+		addEdit(start, end, s.length());
+		if (pieces.size() > MAX_PIECES) {
+			getText();
+		}
+	}
+
+	private void addEdit(int start, int end, int newLength) {
+		if (tokens == null) {
+			return;
+		}
+		int delta = newLength - (end - start);
+		if (editStart < 0) {
+			editStart = start;
+			editOldEnd = end;
+			editNewEnd = start + newLength;
+			return;
+		}
+		// chars past the changed span that this edit takes in were unchanged so far
+		editOldEnd += Math.max(0, end - editNewEnd);
+		editNewEnd = Math.max(editNewEnd, end) + delta;
+		editStart = Math.min(editStart, start);
+	}
+
+	/** The document's tokens, lexed again only around what changed since last asked. */
+	public TokenStream tokens() {
+		String t = getText();
+		if (tokens == null) {
+			tokens = TokenStream.of(t);
+		} else if (editStart >= 0) {
+			tokens = tokens.update(t, editStart, editOldEnd, editNewEnd);
+		}
+		editStart = -1;
+		return tokens;
+	}
+
+	private void insertPiece(List<Piece> result, String s) {
+		if (!s.isEmpty()) {
+			result.add(new Piece(true, added.length(), s.length()));
+			added.append(s);
+		}
+	}
+
+	/** Full text. Flattening also compacts the piece table back to a single piece. */
+	public String getText() {
+		if (text == null) {
+			var sb = new StringBuilder(length);
+			for (Piece p : pieces) {
+				if (p.added) {
+					sb.append(added, p.start, p.start + p.length);
+				} else {
+					sb.append(original, p.start, p.start + p.length);
+				}
+			}
+			reset(sb.toString());
+		}
+		return text;
+	}
+
+	public int offsetAt(Position pos) {
+		return offsetAt(pos.getLine(), pos.getCharacter());
+	}
+
+	public int offsetAt(int line, int character) {
+		if (line < 0) {
+			return 0;
+		}
+		if (line >= lineCount) {
+			return length;
+		}
+		int lineEnd = line + 1 < lineCount ? lineStarts[line + 1] : length;
+		return Math.min(lineStarts[line] + Math.max(0, character), lineEnd);
+	}
+
+	public Position positionAt(int offset) {
+		offset = Math.max(0, Math.min(offset, length));
+		int line = upperBound(offset) - 1;
+		return new Position(line, offset - lineStarts[line]);
+	}
+
+	/** Text of the given line without its line terminator, or null if there is no such line. */
+	public String lineText(int line) {
+		if (line < 0 || line >= lineCount) {
+			return null;
+		}
+		int start = lineStarts[line];
+		int end = line + 1 < lineCount ? lineStarts[line + 1] - 1 : length;
+		String s = slice(start, end);
+		return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+	}
+
+	/** The chars in [start, end), from the flattened text if there is one, else from the pieces. */
+	private String slice(int start, int end) {
+		if (text != null) {
+			return text.substring(start, end);
+		}
+		var sb = new StringBuilder(end - start);
+		int pos = 0;
+		for (Piece p : pieces) {
+			if (pos >= end) {
+				break;
+			}
+			int pEnd = pos + p.length;
+			if (pEnd > start) {
+				CharSequence source = p.added ? added : original;
+				sb.append(source, p.start + Math.max(start, pos) - pos, p.start + Math.min(end, pEnd) - pos);
+			}
+			pos = pEnd;
+		}
+		return sb.toString();
+	}
+
+	private void setText(String s) {
+		reset(s);
+		tokens = null;
+		editStart = -1;
+	}
+
+	private void reset(String s) {
+		original = s;
+		text = s;
+		length = s.length();
+		added.setLength(0);
+		pieces.clear();
+		if (length > 0) {
+			pieces.add(new Piece(false, 0, length));
+		}
+		lineCount = 1;
+		lineStarts[0] = 0;
+		for (int i = 0; i < length; i++) {
+			if (s.charAt(i) == '\n') {
+				addLineStart(i + 1);
+			}
+		}
+	}
+
+	private void addLineStart(int offset) {
+		if (lineCount == lineStarts.length) {
+			lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+		}
+		lineStarts[lineCount++] = offset;
+	}
+
+	/** Index of the first line starting after the given offset */
+	private int upperBound(int offset) {
+		int lo = 0, hi = lineCount;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (lineStarts[mid] <= offset) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	// Lines starting inside (start, end] are gone, lines after it shift by
+	// the length difference, and each newline in s starts a new line.
+	private void updateLines(int start, int end, String s) {
+		int from = upperBound(start);
+		int to = upperBound(end);
+		int newLines = 0;
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) == '\n') {
+				newLines++;
+			}
+		}
+
+		int tail = lineCount - to;
+		int newCount = from + newLines + tail;
+		int[] target = newCount <= lineStarts.length ? lineStarts : new int[Math.max(newCount, lineStarts.length * 2)];
+		if (target != lineStarts) {
+			System.arraycopy(lineStarts, 0, target, 0, from);
+		}
+		System.arraycopy(lineStarts, to, target, from + newLines, tail);
+
+		int delta = s.length() - (end - start);
+		for (int i = from + newLines; i < newCount; i++) {
+			target[i] += delta;
+		}
+		int k = from;
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) == '\n') {
+				target[k++] = start + i + 1;
+			}
+		}
+		lineStarts = target;
+		lineCount = newCount;
+	}
+}
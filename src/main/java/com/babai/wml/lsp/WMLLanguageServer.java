@@ -1,12 +1,22 @@
 package com.babai.wml.lsp;
 
+import static com.babai.wml.preprocessor.PreprocessorConstants.ETAG;
+import static com.babai.wml.preprocessor.PreprocessorConstants.PATH;
+import static com.babai.wml.preprocessor.PreprocessorConstants.STAG;
+import static com.babai.wml.preprocessor.PreprocessorConstants.STRING;
+
 import com.babai.wml.core.Definition;
 import com.babai.wml.core.MacroArg;
 import com.babai.wml.core.MacroCall;
+import com.babai.wml.core.MacroTable;
+import com.babai.wml.core.UnitTypeDB;
+import com.babai.wml.preprocessor.MacroIndexCache;
+import com.babai.wml.preprocessor.ParseSession;
 import com.babai.wml.preprocessor.Preprocessor;
+import com.babai.wml.preprocessor.TokenStream;
 import com.babai.wml.utils.AIGenerated;
 import com.babai.wml.utils.FS;
-import com.babai.wml.utils.Table;
+import com.babai.wml.utils.PathResolver;
 import org.eclipse.lsp4j.*;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.eclipse.lsp4j.services.*;
@@ -17,34 +27,64 @@ import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 @AIGenerated
 public class WMLLanguageServer implements LanguageServer, LanguageClientAware, TextDocumentService {
 	public LanguageClient client;
-	private Path inputPath, dataPath, userDataPath;
-
-	private Table baseDefines, defines;
-	private HashSet<Path> binaryPaths = new HashSet<>();
-	private HashSet<String> unitTypes = new HashSet<>();
+	private Path inputPath, dataPath, userDataPath, cachePath, unitDbPath;
+	private int jobs;
+	// extracted unit types, if a database was given
+	private UnitTypeDB unitTypes;
+
+	private final MacroTable predefines;
+	private MacroTable baseDefines;
+	// Results of the -include paths
+	private ParseSession includeSession = new ParseSession();
+	// Results of the latest workspace parse, replaced as a whole by the next one
+	private volatile AnalysisSnapshot snapshot = AnalysisSnapshot.EMPTY;
+	// whether the client asks for diagnostics itself, and can be told to ask again
+	private boolean pullDiagnostics, refreshDiagnostics;
 
-	private List<MacroCall> calls = new ArrayList<>();
 	private Vector<Path> includePaths = new Vector<>();
-	private List<CompletionItem> macroCompletions = new ArrayList<>();
+	private final MacroCompletionItems macroItems = new MacroCompletionItems();
 	private List<CompletionItem> keywords = new ArrayList<>();
 	private List<CompletionItem> tags = new ArrayList<>();
 	private Properties tagLinks = new Properties();
+	// macros, tags and unit types for workspace/symbol
+	private final SymbolIndex symbols = new SymbolIndex();
+	// who calls each macro, for references and the call hierarchy
+	private final ReferenceIndex usages = new ReferenceIndex();
+	private final DocumentStore documents = new DocumentStore();
+	// semantic tokens last sent for each open document, the base of the next delta
+	private final Map<String, SemanticTokens> sentTokens = new ConcurrentHashMap<>();
+	private final AtomicLong tokensResultId = new AtomicLong();
+	private final DependencyGraph graph = new DependencyGraph(documents);
+	private final PathIndex paths = new PathIndex();
+	private static final int MAX_PATH_RESULTS = 200;
+	// include and hover paths, forgotten whenever the path index sees a file come or go
+	private final PathResolver resolver;
+	// edits are parsed in the background, once they stop coming for a while
+	private final ReparseScheduler reparses = new ReparseScheduler(this::parseFile, ReparseScheduler.DEFAULT_DELAY);
 	private Preprocessor p;
 
-	public WMLLanguageServer(Table predefines, Path dataPath, Path userDataPath, Vector<Path> includePaths) {
+	public WMLLanguageServer(MacroTable predefines, Path dataPath, Path userDataPath, Vector<Path> includePaths,
+			Path cachePath, Path unitDbPath, int jobs) {
 		this.dataPath = dataPath;
 		this.userDataPath = userDataPath;
 		this.includePaths = includePaths;
-		this.defines = predefines;
+		this.cachePath = cachePath;
+		this.unitDbPath = unitDbPath;
+		this.jobs = jobs;
+		this.predefines = predefines;
+		this.resolver = new PathResolver(dataPath, userDataPath);
+		paths.onChange(resolver::invalidate);
 
 		// Directives, this List never changes so created here once
 		BiFunction<String, String, CompletionItem> make = (label, doc) -> {
@@ -70,13 +110,18 @@ public class WMLLanguageServer implements LanguageServer, LanguageClientAware, T
 		// Reference links for tags
 		try {
 			tagLinks.load(getClass().getResourceAsStream("/taglinks.properties"));
+			var tagSymbols = new ArrayList<SymbolIndex.Symbol>();
 			for (var tag : tagLinks.entrySet()) {
 				CompletionItem item = new CompletionItem(tag.getKey().toString());
 				item.setInsertText(item.getLabel() + "]$0[/" + item.getLabel());
 				item.setKind(CompletionItemKind.Snippet);
 				item.setInsertTextFormat(InsertTextFormat.Snippet);
 				tags.add(item);
+				// found at their reference page
+				tagSymbols.add(new SymbolIndex.Symbol(item.getLabel(), SymbolIndex.Kind.TAG,
+						tag.getValue().toString(), -1));
 			}
+			symbols.setSymbols("taglinks", tagSymbols);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -103,11 +148,17 @@ public class WMLLanguageServer implements LanguageServer, LanguageClientAware, T
 		capabilities.setHoverProvider(true);
 		capabilities.setInlayHintProvider(true);
 		capabilities.setDocumentSymbolProvider(true);
+		capabilities.setWorkspaceSymbolProvider(true);
+		capabilities.setReferencesProvider(true);
+		capabilities.setCallHierarchyProvider(true);
+		capabilities.setDiagnosticProvider(new DiagnosticRegistrationOptions(true, true));
+		capabilities.setSemanticTokensProvider(new SemanticTokensWithRegistrationOptions(
+				SemanticTokenEncoder.LEGEND, new SemanticTokensServerFull(true), false));
 		capabilities.setCompletionProvider(new CompletionOptions(true, List.of("#", "{", "/", "[", "=")));
 
 		var syncOptions = new TextDocumentSyncOptions();
 		syncOptions.setOpenClose(true);
-		syncOptions.setChange(TextDocumentSyncKind.Full);
+		syncOptions.setChange(TextDocumentSyncKind.Incremental);
 		syncOptions.setSave(true);
 		capabilities.setTextDocumentSync(syncOptions);
 
@@ -120,6 +171,15 @@ public class WMLLanguageServer implements LanguageServer, LanguageClientAware, T
 
 		var result = new InitializeResult(capabilities);
 
+		var clientCaps = params.getCapabilities();
+		if (clientCaps != null) {
+			pullDiagnostics = clientCaps.getTextDocument() != null
+					&& clientCaps.getTextDocument().getDiagnostic() != null;
+			refreshDiagnostics = clientCaps.getWorkspace() != null
+					&& clientCaps.getWorkspace().getDiagnostics() != null
+					&& Boolean.TRUE.equals(clientCaps.getWorkspace().getDiagnostics().getRefreshSupport());
+		}
+
 		if (params.getWorkspaceFolders() != null && !params.getWorkspaceFolders().isEmpty()) {
 			// 1. Multi-root workspaces (modern)
 			inputPath = Path.of(URI.create(params.getWorkspaceFolders().get(0).getUri()));
@@ -134,99 +194,233 @@ public class WMLLanguageServer implements LanguageServer, LanguageClientAware, T
 		// Send a "ready" message after startup
 		showLSPMessage("WML LSP Server started at: Path=" + inputPath.toAbsolutePath());
 
+		indexPaths();
 		initParserForLSP();
 
 		return CompletableFuture.completedFuture(result);
 	}
 
+	/** Time to wait after an edit for more edits before parsing, in milliseconds. */
+	public void setReparseDelay(long millis) {
+		reparses.setDelay(millis);
+	}
+
 	@Override
 	public CompletableFuture<Object> shutdown() {
+		reparses.close();
+		paths.close();
 		return CompletableFuture.completedFuture(null);
 	}
 
 	@Override
 	public CompletableFuture<Either<List<? extends Location>, List<? extends LocationLink>>> definition(
 			DefinitionParams params) {
-		if (defines != null) {
-			try {
-				String word = getWordAtPosition(params.getTextDocument().getUri(), params.getPosition());
-				var matches = defines.getRows("Name", word);
-				if (!matches.isEmpty()) {
-					String targetURI = matches.get(0).getColumn("URI").getValue().toString();
-					int targetLine = (int) matches.get(0).getColumn("Line").getValue();
-					var range = new Range(new Position(targetLine, 0), new Position(targetLine, 1));
-					var loc = new Location(targetURI, range);
-					return CompletableFuture.completedFuture(Either.forLeft(List.of(loc)));
-				}
-			} catch (IOException e) {
-				showLSPMessage("Can't find word under cursor!");
+		try {
+			String word = getWordAtPosition(params.getTextDocument().getUri(), params.getPosition());
+			var match = snapshot.findMacro(word);
+			if (match != null) {
+				String targetURI = match.uri();
+				int targetLine = match.line();
+				var range = new Range(new Position(targetLine, 0), new Position(targetLine, 1));
+				var loc = new Location(targetURI, range);
+				return CompletableFuture.completedFuture(Either.forLeft(List.of(loc)));
 			}
+		} catch (IOException e) {
+			showLSPMessage("Can't find word under cursor!");
 		}
 
 		return CompletableFuture.completedFuture(null);
 	}
 
 	@Override
-	public CompletableFuture<Hover> hover(HoverParams params) {
-		var content = new MarkupContent();
-		if (defines != null) {
-			try {
-				String word = getWordAtPosition(params.getTextDocument().getUri(), params.getPosition());
+	public CompletableFuture<List<? extends Location>> references(ReferenceParams params) {
+		String word = macroNameAt(params.getTextDocument().getUri(), params.getPosition());
+		if (word == null) {
+			return CompletableFuture.completedFuture(List.of());
+		}
+		var result = new ArrayList<Location>();
+		if (params.getContext() != null && params.getContext().isIncludeDeclaration()) {
+			var match = snapshot.findMacro(word);
+			if (match != null) {
+				result.add(new Location(match.uri(), lineRange(match.line())));
+			}
+		}
+		var byFile = usages.callsTo(word);
+		for (String uri : new TreeSet<>(byFile.keySet())) {
+			for (MacroCall call : byFile.get(uri)) {
+				result.add(new Location(uri, callRange(call)));
+			}
+		}
+		return CompletableFuture.completedFuture(result);
+	}
+
+	@Override
+	public CompletableFuture<List<CallHierarchyItem>> prepareCallHierarchy(CallHierarchyPrepareParams params) {
+		String word = macroNameAt(params.getTextDocument().getUri(), params.getPosition());
+		var match = word != null ? snapshot.findMacro(word) : null;
+		return CompletableFuture.completedFuture(match != null ? List.of(macroItem(match)) : List.of());
+	}
+
+	@Override
+	public CompletableFuture<List<CallHierarchyIncomingCall>> callHierarchyIncomingCalls(
+			CallHierarchyIncomingCallsParams params) {
+		var snap = snapshot;
+		var item = params.getItem();
+		var result = new ArrayList<CallHierarchyIncomingCall>();
+		if (item.getKind() == SymbolKind.File) {
+			return CompletableFuture.completedFuture(result);
+		}
+		var byFile = usages.callsTo(item.getName());
+		for (String uri : new TreeSet<>(byFile.keySet())) {
+			// calls outside of macros come from the file itself
+			var fromMacros = new LinkedHashMap<MacroTable.Entry, List<Range>>();
+			var fromFile = new ArrayList<Range>();
+			for (MacroCall call : byFile.get(uri)) {
+				var caller = callerOf(snap, call);
+				(caller != null ? fromMacros.computeIfAbsent(caller, e -> new ArrayList<>()) : fromFile)
+						.add(callRange(call));
+			}
+			fromMacros.forEach((caller, ranges) -> result.add(new CallHierarchyIncomingCall(macroItem(caller), ranges)));
+			if (!fromFile.isEmpty()) {
+				result.add(new CallHierarchyIncomingCall(fileItem(uri), fromFile));
+			}
+		}
+		return CompletableFuture.completedFuture(result);
+	}
+
+	@Override
+	public CompletableFuture<List<CallHierarchyOutgoingCall>> callHierarchyOutgoingCalls(
+			CallHierarchyOutgoingCallsParams params) {
+		var snap = snapshot;
+		var item = params.getItem();
+		boolean file = item.getKind() == SymbolKind.File;
+		var byName = new LinkedHashMap<String, List<Range>>();
+		for (MacroCall call : usages.callsIn(item.getUri())) {
+			var caller = callerOf(snap, call);
+			boolean made = file ? caller == null
+					: caller != null && caller.name().equals(item.getName())
+							&& caller.line() == item.getRange().getStart().getLine();
+			if (made) {
+				byName.computeIfAbsent(call.name(), name -> new ArrayList<>()).add(callRange(call));
+			}
+		}
+		var result = new ArrayList<CallHierarchyOutgoingCall>();
+		byName.forEach((name, ranges) -> {
+			var target = snap.findMacro(name);
+			if (target != null) {
+				result.add(new CallHierarchyOutgoingCall(macroItem(target), ranges));
+			}
+		});
+		return CompletableFuture.completedFuture(result);
+	}
+
+	/** The definition whose body the call is in, the last one above it if the file redefines the macro. */
+	private static MacroTable.Entry callerOf(AnalysisSnapshot snap, MacroCall call) {
+		if (call.caller() == null) {
+			return null;
+		}
+		MacroTable.Entry caller = null;
+		for (var e : snap.macrosIn(call.uri())) {
+			if (e.name().equals(call.caller()) && e.line() <= call.startLine()
+					&& (caller == null || e.line() > caller.line())) {
+				caller = e;
+			}
+		}
+		return caller;
+	}
+
+	private String macroNameAt(String uri, Position pos) {
+		try {
+			return getWordAtPosition(uri, pos);
+		} catch (IOException e) {
+			showLSPMessage("Can't find word under cursor!");
+			return null;
+		}
+	}
+
+	private static CallHierarchyItem macroItem(MacroTable.Entry e) {
+		var range = lineRange(e.line());
+		return new CallHierarchyItem(e.name(), SymbolKind.Function, e.uri(), range, range);
+	}
+
+	private static CallHierarchyItem fileItem(String uri) {
+		var range = lineRange(0);
+		String name = DocumentStore.toPath(uri).getFileName().toString();
+		return new CallHierarchyItem(name, SymbolKind.File, uri, range, range);
+	}
+
+	private static Range lineRange(int line) {
+		return new Range(new Position(line, 0), new Position(line, 1));
+	}
 
-				if (word == null || word.isEmpty()) return CompletableFuture.completedFuture(null);
+	private static Range callRange(MacroCall call) {
+		return new Range(new Position(call.startLine(), call.startChar()),
+				new Position(call.endLine(), call.endChar() + 1));
+	}
 
-				if (word.contains("[")) {
-					// Tags
-					String searchWord = word.replaceAll("/", "");
-					searchWord = searchWord.substring(1, searchWord.length() - 1);
-					String link = tagLinks.getProperty(searchWord);
+	@Override
+	public CompletableFuture<Hover> hover(HoverParams params) {
+		var snap = snapshot;
+		var content = new MarkupContent();
+		try {
+			String word = getWordAtPosition(params.getTextDocument().getUri(), params.getPosition());
+
+			if (word == null || word.isEmpty()) return CompletableFuture.completedFuture(null);
+
+			if (word.contains("[")) {
+				// Tags
+				String searchWord = word.replaceAll("/", "");
+				searchWord = searchWord.substring(1, searchWord.length() - 1);
+				String link = tagLinks.getProperty(searchWord);
+				content.setKind("markdown");
+				content.setValue("Tag: **" + word + "**" +  "\n\n"
+					+ (link != null ? "Reference: " + link : "")
+				);
+			} else if (word.contains("/") || word.contains("~")) {
+				// Wesnoth Paths
+				// if tilde is in front, it's a userdata path, ignore
+				// if not, drop, IPF.
+				if (!word.startsWith("~") && word.contains("~")) {
+					word = word.substring(0, word.indexOf("~"));
+				}
+				if (word.contains(":")) {
+					word = word.substring(0, word.indexOf(":"));
+				}
+				Path p = resolver.resolve(word, snap.binaryPaths(), snap.binaryPathsVersion(), Path.of(
+					new URI(params.getTextDocument().getUri())));
+				if (Files.exists(p)) {
 					content.setKind("markdown");
-					content.setValue("Tag: **" + word + "**" +  "\n\n"
-						+ (link != null ? "Reference: " + link : "")
-					);
-				} else if (word.contains("/") || word.contains("~")) {
-					// Wesnoth Paths
-					// if tilde is in front, it's a userdata path, ignore
-					// if not, drop, IPF.
-					if (!word.startsWith("~") && word.contains("~")) {
-						word = word.substring(0, word.indexOf("~"));
-					}
-					if (word.contains(":")) {
-						word = word.substring(0, word.indexOf(":"));
-					}
-					Path p = FS.resolve(word, binaryPaths, Path.of(
-						new URI(params.getTextDocument().getUri())),
-						dataPath, userDataPath);
-					if (Files.exists(p)) {
-						content.setKind("markdown");
-						if (FS.getAssetType(word).equals("images")) {
-							content.setValue("![Image](" + p.toUri().toString() + ")");
-						} else {
-							content.setValue("Go To: [" + p.getFileName() + "](" + p.toUri().toString() + ")");
-						}
+					if (FS.getAssetType(word).equals("images")) {
+						content.setValue("![Image](" + p.toUri().toString() + ")");
 					} else {
-						content.setKind("plaintext");
-						content.setValue("Non-existant path: " + p);
+						content.setValue("Go To: [" + p.getFileName() + "](" + p.toUri().toString() + ")");
 					}
 				} else {
-					// Macro calls
-					var matches = defines.getRows("Name", word);
-					if (!matches.isEmpty()) {
-						Definition def = (Definition) matches.get(0).getColumn("Definition").getValue();
-						content.setKind("markdown");
-						content.setValue("**" + def.name() + "**\n\n" + def.getDocs());
-					} else {
-						return CompletableFuture.completedFuture(null);
-					}
+					content.setKind("plaintext");
+					content.setValue("Non-existant path: " + p);
+				}
+			} else {
+				// Macro calls
+				var match = snap.findMacro(word);
+				int unitType = unitTypeAt(params.getTextDocument().getUri(), params.getPosition());
+				if (match != null) {
+					Definition def = match.def();
+					content.setKind("markdown");
+					content.setValue("**" + def.name() + "**\n\n" + def.getDocs());
+				} else if (unitType >= 0) {
+					content.setKind("markdown");
+					content.setValue(describeUnitType(unitType));
+				} else {
+					return CompletableFuture.completedFuture(null);
 				}
-			} catch (IOException e) {
-				showLSPMessage("Can't find word under cursor!");
-				return CompletableFuture.completedFuture(null);
-			} catch (URISyntaxException e) {
-				// shouldn't really happen...
-				showLSPMessage("Invalid uri for current document!");
-				return CompletableFuture.completedFuture(null);
 			}
+		} catch (IOException e) {
+			showLSPMessage("Can't find word under cursor!");
+			return CompletableFuture.completedFuture(null);
+		} catch (URISyntaxException e) {
+			// shouldn't really happen...
+			showLSPMessage("Invalid uri for current document!");
+			return CompletableFuture.completedFuture(null);
 		}
 		Hover hover = new Hover(content);
 		return CompletableFuture.completedFuture(hover);
@@ -237,6 +431,24 @@ public class WMLLanguageServer implements LanguageServer, LanguageClientAware, T
 		String triggerChar = params.getContext() != null ? params.getContext().getTriggerCharacter() : null;
 		List<CompletionItem> items = new ArrayList<>();
 
+		String line = lineAt(params.getTextDocument().getUri(), params.getPosition());
+
+		// Macro calls, also when typing on after an incomplete list
+		String macroPrefix = macroPrefixAt(line, params.getPosition());
+		if (macroPrefix != null || (triggerChar != null && triggerChar.equals("{"))) {
+			return CompletableFuture.completedFuture(Either.forRight(
+					macroCompletions(macroPrefix != null ? macroPrefix : "", params.getTextDocument().getUri())));
+		}
+
+		// Paths, also when typing on after an incomplete list
+		String pathPrefix = pathPrefixAt(line, params.getPosition());
+		if ((triggerChar != null && triggerChar.equals("/"))
+				|| (params.getContext().getTriggerKind() == CompletionTriggerKind.TriggerForIncompleteCompletions
+						&& pathPrefix.contains("/"))) {
+			return CompletableFuture.completedFuture(Either.forRight(
+					pathCompletions(pathPrefix, assetTypeAt(line), params.getPosition())));
+		}
+
 		// Directives
 		if (params.getContext().getTriggerKind() == CompletionTriggerKind.Invoked
 				|| (triggerChar != null) && triggerChar.equals("#")) {
@@ -244,12 +456,6 @@ public class WMLLanguageServer implements LanguageServer, LanguageClientAware, T
 			return CompletableFuture.completedFuture(Either.forLeft(items));
 		}
 
-		if (params.getContext().getTriggerKind() == CompletionTriggerKind.Invoked
-				|| (triggerChar != null) && triggerChar.equals("{")) {
-			items.addAll(macroCompletions);
-			return CompletableFuture.completedFuture(Either.forLeft(items));
-		}
-
 		if (params.getContext().getTriggerKind() == CompletionTriggerKind.Invoked
 				|| (triggerChar != null) && triggerChar.equals("[")) {
 			items.addAll(tags);
@@ -259,7 +465,13 @@ public class WMLLanguageServer implements LanguageServer, LanguageClientAware, T
 		if (params.getContext().getTriggerKind() == CompletionTriggerKind.Invoked
 				|| (triggerChar != null) && triggerChar.equals("="))
 		{
-			for (var type : unitTypes) {
+			var types = new TreeSet<>(snapshot.unitTypes());
+			if (unitTypes != null) {
+				for (int i = 0; i < unitTypes.size(); i++) {
+					types.add(unitTypes.id(i));
+				}
+			}
+			for (var type : types) {
 				CompletionItem item = new CompletionItem(type);
 				item.setInsertText(item.getLabel());
 				item.setKind(CompletionItemKind.Constant);
@@ -268,32 +480,25 @@ public class WMLLanguageServer implements LanguageServer, LanguageClientAware, T
 			return CompletableFuture.completedFuture(Either.forLeft(items));
 		}
 
-		if (triggerChar != null && triggerChar.equals("/")) {
-			try {
-//				String word = getWordAtPosition(params.getTextDocument().getUri(), params.getPosition());
-//				showLSPMessage(word);
-				items.addAll(listAll(inputPath, "", params.getPosition()));
-				return CompletableFuture.completedFuture(Either.forLeft(items));
-			} catch (IOException e) {
-				e.printStackTrace();
-				return CompletableFuture.completedFuture(null);
-			}
-		}
-
 		return CompletableFuture.completedFuture(null);
 	}
 
 	@Override
 	public CompletableFuture<List<Either<SymbolInformation, DocumentSymbol>>> documentSymbol(DocumentSymbolParams params) {
-
+		// only reads the snapshot, so it doesn't have to hold up the message thread
+		var snap = snapshot;
 		String docUri = params.getTextDocument().getUri();
+		return CompletableFuture.supplyAsync(() -> documentSymbols(snap, docUri));
+	}
+
+	private List<Either<SymbolInformation, DocumentSymbol>> documentSymbols(AnalysisSnapshot snap, String docUri) {
 		var emptyRange = new Range(
 				new Position(0, 0),
 				new Position(0, 0));
 		List<Either<SymbolInformation, DocumentSymbol>> symbolList = new ArrayList<>();
 
 		// 1. Macro Definitions
-		var matches = defines.getRows("URI", docUri);
+		var matches = snap.macrosIn(docUri);
 		if (!matches.isEmpty()) {
 			List<DocumentSymbol> listDef = new ArrayList<>();
 			DocumentSymbol mdefRoot = new DocumentSymbol();
@@ -302,8 +507,8 @@ public class WMLLanguageServer implements LanguageServer, LanguageClientAware, T
 			mdefRoot.setRange(emptyRange);
 			mdefRoot.setSelectionRange(emptyRange);
 			for (var match : matches) {
-				String targetName = match.getColumn("Name").getValue().toString();
-				int targetLine = (int) match.getColumn("Line").getValue();
+				String targetName = match.name();
+				int targetLine = match.line();
 				var range = new Range(new Position(targetLine, 0), new Position(targetLine, 1));
 				DocumentSymbol sym = new DocumentSymbol();
 				sym.setName(targetName);
@@ -317,6 +522,7 @@ public class WMLLanguageServer implements LanguageServer, LanguageClientAware, T
 		}
 
 		// 2. Macro Calls
+		List<MacroCall> calls = snap.callsIn(docUri);
 		if (!calls.isEmpty()) {
 			List<DocumentSymbol> listCall = new ArrayList<>();
 			DocumentSymbol mcallRoot = new DocumentSymbol();
@@ -326,9 +532,6 @@ public class WMLLanguageServer implements LanguageServer, LanguageClientAware, T
 			mcallRoot.setSelectionRange(emptyRange);
 
 			for (MacroCall call : calls) {
-				if (!call.uri().equals(docUri)) {
-					continue;
-				}
 				DocumentSymbol sym = new DocumentSymbol();
 				sym.setName(call.name());
 				sym.setKind(SymbolKind.Method);
@@ -346,25 +549,30 @@ public class WMLLanguageServer implements LanguageServer, LanguageClientAware, T
 			symbolList.add(Either.forRight(mcallRoot));
 		}
 
-		return CompletableFuture.completedFuture(symbolList);
+		return symbolList;
 	}
 
 	@Override
 	public CompletableFuture<List<InlayHint>> inlayHint(InlayHintParams params) {
+		var snap = snapshot;
 		String uri = params.getTextDocument().getUri();
+		Range viewRange = params.getRange();
+		return CompletableFuture.supplyAsync(() -> inlayHints(snap, uri, viewRange));
+	}
+
+	/** Parameter names of the calls in the given range of the file, or in all of it if range is null. */
+	private List<InlayHint> inlayHints(AnalysisSnapshot snap, String uri, Range viewRange) {
 		List<InlayHint> hints = new ArrayList<>();
 
+		var calls = viewRange != null
+				? snap.callsIn(uri, viewRange.getStart().getLine(), viewRange.getEnd().getLine())
+				: snap.callsIn(uri);
 		for (MacroCall call : calls) {
-			// skip calls outside the visible range
-//			if (call.startLine() > viewRange.getEnd().getLine()) continue;
-//			if (call.endLine() < viewRange.getStart().getLine()) continue;
-			if (!call.uri().equals(uri)) continue;
-
-			var rows = defines.getRows("Name", call.name());
-			if (rows.isEmpty()) continue;
-			var def = (Definition) rows.get(0).getColumn("Definition").getValue();
-			String defTargetUri = (String) rows.get(0).getColumn("URI").getValue();
-			int targetLine = (int) rows.get(0).getColumn("Line").getValue();
+			var match = snap.definitionOf(call);
+			if (match == null) continue;
+			var def = match.def();
+			String defTargetUri = match.uri();
+			int targetLine = match.line();
 			var range = new Range(new Position(targetLine, 0), new Position(targetLine, 1));
 			var loc = new Location(defTargetUri, range);
 
@@ -388,39 +596,71 @@ public class WMLLanguageServer implements LanguageServer, LanguageClientAware, T
 			}
 		}
 
-		return CompletableFuture.completedFuture(hints);
+		return hints;
 	}
 
-	private static CompletionItem toCompletionItem(String relPath, Position cursor) {
-		CompletionItem item = new CompletionItem(relPath);
-		item.setKind(CompletionItemKind.File); // You could detect folder vs file if you want
-//		item.setInsertText(relPath);           // Simple snippet = just the path
-//		 Replace the trigger "/" with the path text
-		Range replaceRange = new Range(
-				new Position(cursor.getLine(), cursor.getCharacter() - 1),
-				cursor
-				);
-		item.setTextEdit(Either.forLeft(new TextEdit(replaceRange, relPath)));
-		return item;
+	/** Indexed paths starting with the prefix, replacing it when picked. */
+	private CompletionList pathCompletions(String prefix, String assetType, Position cursor) {
+		var found = paths.find(prefix, assetType, MAX_PATH_RESULTS);
+		var replaceRange = new Range(new Position(cursor.getLine(), cursor.getCharacter() - prefix.length()), cursor);
+		var items = new ArrayList<CompletionItem>(found.size());
+		for (String path : found) {
+			CompletionItem item = new CompletionItem(path);
+			item.setKind(path.endsWith("/") ? CompletionItemKind.Folder : CompletionItemKind.File);
+			item.setTextEdit(Either.forLeft(new TextEdit(replaceRange, path)));
+			items.add(item);
+		}
+		return new CompletionList(found.size() == MAX_PATH_RESULTS || !paths.isIdle(), items);
+	}
+
+	/** The text of the given line, "" if there is none. */
+	private String lineAt(String uri, Position pos) {
+		try {
+			String line = getLine(uri, pos.getLine());
+			return line != null ? line : "";
+		} catch (IOException e) {
+			return "";
+		}
+	}
+
+	/** The path typed before the cursor, possibly empty. */
+	private static String pathPrefixAt(String line, Position pos) {
+		int end = Math.min(pos.getCharacter(), line.length());
+		int start = end;
+		while (start > 0 && "\t =\"{}(),".indexOf(line.charAt(start - 1)) < 0) {
+			start--;
+		}
+		return line.substring(start, end);
 	}
 
-	private static List<CompletionItem> listAll(Path baseDir, String prefix, Position cursor) throws IOException {
-		try (Stream<Path> stream = Files.walk(baseDir)) {
-			return stream
-					.filter(p -> !p.equals(baseDir))
-					.map(baseDir::relativize)
-					.map(p -> p.toString().replace('\\', '/'))
-					.filter(rel -> rel.startsWith(prefix))
-					.filter(rel -> !rel.startsWith("."))
-					.map(rel -> toCompletionItem(rel, cursor))
-					.collect(Collectors.toList());
+	/** Kind of asset the attribute on the line refers to, as in FS.getAssetType, or null. */
+	private static String assetTypeAt(String line) {
+		int eq = line.indexOf('=');
+		if (eq < 0) {
+			return null;
+		}
+		String key = line.substring(0, eq).strip().toLowerCase();
+		if (key.contains("image") || key.contains("icon") || key.contains("halo")
+				|| key.contains("profile") || key.contains("portrait")) {
+			return "images";
+		} else if (key.contains("sound")) {
+			return "sounds";
+		} else if (key.contains("music")) {
+			return "music";
+		} else if (key.contains("map")) {
+			return "maps";
 		}
+		return null;
 	}
 
 	@Override
 	public CompletableFuture<CompletionItem> resolveCompletionItem(CompletionItem item) {
-		// Add more info if needed, or just return the item as-is
-		return CompletableFuture.completedFuture(item);
+		// macro items carry the macro name, their documentation is only looked up here
+		var snap = snapshot;
+		return CompletableFuture.completedFuture(MacroCompletionItems.resolve(item, name -> {
+			var match = snap.findMacro(name);
+			return match != null ? match.def() : null;
+		}));
 	}
 
 	@Override
@@ -442,118 +682,425 @@ public class WMLLanguageServer implements LanguageServer, LanguageClientAware, T
 
 			@Override
 			public void didChangeWatchedFiles(DidChangeWatchedFilesParams params) {
+				for (var change : params.getChanges()) {
+					if (change.getType() != FileChangeType.Changed) {
+						paths.changed(DocumentStore.toPath(change.getUri()), change.getType() == FileChangeType.Deleted);
+						// the path index tells too, but only once it got to the change
+						resolver.invalidate();
+					}
+				}
+			}
+
+			@Override
+			public CompletableFuture<Either<List<? extends SymbolInformation>, List<? extends WorkspaceSymbol>>> symbol(
+					WorkspaceSymbolParams params) {
+				return CompletableFuture.supplyAsync(
+						() -> Either.forRight(workspaceSymbols(params.getQuery())));
+			}
+
+			@Override
+			public CompletableFuture<WorkspaceDiagnosticReport> diagnostic(WorkspaceDiagnosticParams params) {
+				var snap = snapshot;
+				var previous = new HashMap<String, String>();
+				for (var id : params.getPreviousResultIds()) {
+					previous.put(id.getUri(), id.getValue());
+				}
+				// files the client knows of and that have none left are reported as empty
+				var uris = new TreeSet<>(snap.diagnosedUris());
+				uris.addAll(previous.keySet());
+				var reports = new ArrayList<WorkspaceDocumentDiagnosticReport>();
+				for (String uri : uris) {
+					String id = snap.resultIdOf(uri);
+					if (id.equals(previous.get(uri))) {
+						reports.add(new WorkspaceDocumentDiagnosticReport(
+								new WorkspaceUnchangedDocumentDiagnosticReport(id, uri, null)));
+					} else {
+						var full = new WorkspaceFullDocumentDiagnosticReport(snap.errorsOf(uri), uri, null);
+						full.setResultId(id);
+						reports.add(new WorkspaceDocumentDiagnosticReport(full));
+					}
+				}
+				return CompletableFuture.completedFuture(new WorkspaceDiagnosticReport(reports));
 			}
 		};
 	}
 
+	private List<WorkspaceSymbol> workspaceSymbols(String query) {
+		var result = new ArrayList<WorkspaceSymbol>();
+		for (var s : symbols.find(query)) {
+			Either<Location, WorkspaceSymbolLocation> location;
+			if (s.line() >= 0) {
+				var range = new Range(new Position(s.line(), 0), new Position(s.line(), 1));
+				location = Either.forLeft(new Location(s.uri(), range));
+			} else {
+				location = Either.forRight(new WorkspaceSymbolLocation(s.uri()));
+			}
+			var kind = switch (s.kind()) {
+			case MACRO -> SymbolKind.Function;
+			case TAG -> SymbolKind.Struct;
+			case UNIT_TYPE -> SymbolKind.Class;
+			};
+			result.add(new WorkspaceSymbol(s.name(), kind, location));
+		}
+		return result;
+	}
+
 	@Override
-	public void didChange(DidChangeTextDocumentParams params) {
-		inputPath = Path.of(URI.create(params.getTextDocument().getUri()));
+	public CompletableFuture<DocumentDiagnosticReport> diagnostic(DocumentDiagnosticParams params) {
+		var snap = snapshot;
+		String uri = params.getTextDocument().getUri();
+		String id = snap.resultIdOf(uri);
+		if (id.equals(params.getPreviousResultId())) {
+			return CompletableFuture.completedFuture(
+					new DocumentDiagnosticReport(new RelatedUnchangedDocumentDiagnosticReport(id)));
+		}
+		var full = new RelatedFullDocumentDiagnosticReport(snap.errorsOf(uri));
+		full.setResultId(id);
+		return CompletableFuture.completedFuture(new DocumentDiagnosticReport(full));
+	}
 
-		try {
-			parseFile(inputPath);
-		} catch (IOException e) {
-			showLSPMessage("Parsing " + inputPath.toString() + " failed.");
+	/**
+	 * Let the client know the diagnostics changed after a parse. A client
+	 * pulling them is asked to pull again, the others are sent the
+	 * diagnostics of the files whose diagnostics changed.
+	 */
+	private void publishDiagnostics(AnalysisSnapshot before, AnalysisSnapshot after) {
+		if (client == null) {
+			return;
+		}
+		if (pullDiagnostics) {
+			if (refreshDiagnostics) {
+				client.refreshDiagnostics();
+			}
+			return;
+		}
+		var uris = new HashSet<>(before.diagnosedUris());
+		uris.addAll(after.diagnosedUris());
+		for (String uri : uris) {
+			if (!before.resultIdOf(uri).equals(after.resultIdOf(uri))) {
+				client.publishDiagnostics(new PublishDiagnosticsParams(uri, after.errorsOf(uri)));
+			}
 		}
 	}
 
 	@Override
-	public void didClose(DidCloseTextDocumentParams arg0) {
-		// TODO Auto-generated method stub
+	public CompletableFuture<SemanticTokens> semanticTokensFull(SemanticTokensParams params) {
+		return CompletableFuture.completedFuture(semanticTokens(params.getTextDocument().getUri()));
+	}
+
+	@Override
+	public CompletableFuture<Either<SemanticTokens, SemanticTokensDelta>> semanticTokensFullDelta(
+			SemanticTokensDeltaParams params) {
+		String uri = params.getTextDocument().getUri();
+		var previous = sentTokens.get(uri);
+		var current = semanticTokens(uri);
+		if (previous == null || !previous.getResultId().equals(params.getPreviousResultId())) {
+			return CompletableFuture.completedFuture(Either.forLeft(current));
+		}
+		var edit = SemanticTokenEncoder.diff(previous.getData(), current.getData());
+		var delta = new SemanticTokensDelta(edit != null ? List.of(edit) : List.of(), current.getResultId());
+		return CompletableFuture.completedFuture(Either.forRight(delta));
+	}
+
+	private SemanticTokens semanticTokens(String uri) {
+		TokenStream tokens = tokensOf(uri);
+		if (tokens == null) {
+			return new SemanticTokens(List.of());
+		}
+		var result = new SemanticTokens(Long.toString(tokensResultId.incrementAndGet()),
+				SemanticTokenEncoder.encode(tokens));
+		sentTokens.put(uri, result);
+		return result;
+	}
 
+	/** Tokens of an open document, null if it isn't open. */
+	private TokenStream tokensOf(String uri) {
+		TextDocument doc = documents.get(uri);
+		if (doc == null) {
+			return null;
+		}
+		synchronized (doc) {
+			return doc.tokens();
+		}
+	}
+
+	@Override
+	public void didChange(DidChangeTextDocumentParams params) {
+		var doc = params.getTextDocument();
+		documents.change(doc.getUri(), doc.getVersion(), params.getContentChanges());
+		reparses.schedule(DocumentStore.toPath(doc.getUri()));
+	}
+
+	@Override
+	public void didClose(DidCloseTextDocumentParams params) {
+		documents.close(params.getTextDocument().getUri());
+		sentTokens.remove(params.getTextDocument().getUri());
+		// unsaved edits are gone, the file on disk is what counts now
+		reparses.schedule(DocumentStore.toPath(params.getTextDocument().getUri()));
 	}
 
-	// FIXME still buggy. if you change a file and save, you need to relaunch editor for the diagnostic change to take effect.
-	// putting parsing in didSave doesn't work, either
 	@Override
 	public void didOpen(DidOpenTextDocumentParams params) {
 		String uri = params.getTextDocument().getUri();
-		if (p!=null){
-			var errorsList = p.getErrors().get(uri);
-			if (!(errorsList == null || errorsList.isEmpty())) {
-				client.publishDiagnostics(new PublishDiagnosticsParams(uri, errorsList));
-			}
+		documents.open(uri, params.getTextDocument().getText(), params.getTextDocument().getVersion());
+		// every parse pushes what changed, this is for clients that dropped them on close
+		var errorsList = snapshot.errorsOf(uri);
+		if (!pullDiagnostics && client != null && !errorsList.isEmpty()) {
+			client.publishDiagnostics(new PublishDiagnosticsParams(uri, errorsList));
 		}
 	}
 
 	@Override
 	public void didSave(DidSaveTextDocumentParams params) {
-		inputPath = Path.of(URI.create(params.getTextDocument().getUri()));
-		try {
-			parseFile(inputPath);
-		} catch (IOException e) {
-			showLSPMessage("Parsing " + inputPath.toString() + " failed.");
+		reparses.schedule(DocumentStore.toPath(params.getTextDocument().getUri()));
+	}
+
+	/** Start indexing the directories paths can be completed from. */
+	private void indexPaths() {
+		paths.addRoot(inputPath, "");
+		if (dataPath != null) {
+			paths.addRoot(dataPath, "");
+			// where FS.resolve looks for assets last
+			paths.addBinaryPath(dataPath.resolve("core"));
+		}
+		if (userDataPath != null && Files.isDirectory(userDataPath.resolve("add-ons"))) {
+			paths.addRoot(userDataPath.resolve("add-ons"), "~add-ons/");
+		}
+		paths.start(true);
+	}
+
+	/** Index the asset folders of the binary paths found, where FS.resolve looks for them. */
+	private void indexBinaryPaths(Set<Path> binaryPaths) {
+		for (Path bp : binaryPaths) {
+			if (userDataPath != null) {
+				paths.addBinaryPath(userDataPath.resolve("..").resolve(bp).normalize());
+			}
+			if (dataPath != null) {
+				paths.addBinaryPath(dataPath.resolve("..").resolve(bp).normalize());
+			}
 		}
 	}
 
 	private void initParserForLSP() {
+		if (unitDbPath != null) {
+			try {
+				unitTypes = UnitTypeDB.open(unitDbPath);
+				var unitSymbols = new ArrayList<SymbolIndex.Symbol>();
+				for (int i = 0; i < unitTypes.size(); i++) {
+					unitSymbols.add(new SymbolIndex.Symbol(unitTypes.id(i), SymbolIndex.Kind.UNIT_TYPE,
+							unitDbPath.toUri().toString(), -1));
+				}
+				symbols.setSymbols("unitdb", unitSymbols);
+			} catch (IOException e) {
+				showLSPMessage("Can't open unit type database " + unitDbPath + ": " + e.getMessage());
+			}
+		}
 		try {
 			p = new Preprocessor(inputPath.resolve("_main.cfg"));
 			p.showParseLogs(false);
 			p.showWarnLogs(false);
 			p.setOutput(null);
-			p.setDefinesMap(defines);
+			p.setDefinesMap(predefines.copy());
+			p.setSources(documents::textOf);
+			p.setJobs(jobs);
+			p.setPathResolver(resolver);
 			p.token_source.dataPath = dataPath;
 			p.token_source.userDataPath = userDataPath;
 			p.token_source.showLogs = false;
 			if (inputPath != null) {
+				MacroIndexCache cache = null;
+				if (cachePath != null) {
+					cache = new MacroIndexCache(cachePath, cacheContext());
+					cache.load();
+					p.setCache(cache);
+				}
+				p.setSession(includeSession);
 				for (Path incpath : includePaths) {
 					p.subparse(incpath);
-					unitTypes.addAll(p.getUnitTypes());
+				}
+				if (cache != null) {
+					p.setCache(null);
+					cache.save();
+					showLSPMessage("Macro index: " + cache.reusedCount() + " files reused, "
+							+ cache.parsedCount() + " parsed.");
 				}
 
-				baseDefines = defines.copy();
+				baseDefines = p.getDefines().copy();
+				// the -include paths are only parsed once, index their calls and unit types now
+				var included = new HashMap<String, List<MacroCall>>();
+				for (MacroCall call : includeSession.getMacroCalls()) {
+					included.computeIfAbsent(call.uri(), uri -> new ArrayList<>()).add(call);
+				}
+				included.forEach(usages::setCalls);
+				var unitSymbols = new ArrayList<SymbolIndex.Symbol>();
+				for (String id : includeSession.getUnitTypes()) {
+					unitSymbols.add(new SymbolIndex.Symbol(id, SymbolIndex.Kind.UNIT_TYPE, inputPath.toUri().toString(), -1));
+				}
+				symbols.setSymbols("unittypes", unitSymbols);
 				try {
-					parseFile(inputPath);
+					parseFile(Set.of(), () -> false);
 				} catch (IOException e) {
 					showLSPMessage("Parsing " + inputPath.toString() + " failed.");
 				}
 			}
-			showLSPMessage("Parsed, " + defines.rowCount() + " macros and " + unitTypes.size() + " unittypes defined.");
+			showLSPMessage("Parsed, " + snapshot.macroCount() + " macros and " + snapshot.unitTypes().size() + " unittypes defined.");
+			showLSPMessage("Path resolution: " + resolver.hitCount() + " cached, " + resolver.missCount() + " looked up.");
 		} catch (IOException e) {
 			showLSPMessage("Parsing error: " + inputPath.toString() + "not accessible!");
 		}
 	}
 
-	private void parseFile(Path inputPath) throws IOException {
+	/** Everything besides the included files themselves that the macro index depends on */
+	private String cacheContext() {
+		var sb = new StringBuilder();
+		sb.append(dataPath).append('|').append(userDataPath);
+		for (var e : predefines.entries()) {
+			sb.append('|').append(e.def());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Parse the workspace again after the given files changed. Only the
+	 * changed files and the files depending on their macros are parsed, the
+	 * rest is replayed from the dependency graph.
+	 *
+	 * Throws a CancellationException, and keeps the previous results, if
+	 * cancelled turns true or an open document is edited meanwhile. The
+	 * records of the files parsed so far stay in the graph.
+	 */
+	private synchronized void parseFile(Set<Path> changed, BooleanSupplier cancelled) throws IOException {
+		var versions = documents.versions();
+		for (Path c : changed) {
+			graph.invalidate(c);
+		}
+
+		// a fresh session each time, the previous results are dropped
+		var next = new ParseSession(includeSession);
 		p.setDefinesMap(baseDefines.copy());
-		p.subparse(inputPath);
-		unitTypes.addAll(p.getUnitTypes());
+		p.setSession(next);
+		p.setCache(graph);
+		p.setCancelled(cancelled);
+		graph.beginParse();
+		boolean done = false;
+		try {
+			p.subparse(inputPath);
+			for (Path c : changed) {
+				if (!graph.isVisited(c) && c.toString().endsWith(".cfg")) {
+					// not included from the workspace, check it on its own
+					p.subparse(c);
+				}
+			}
+			done = true;
+		} finally {
+			// a partial parse didn't visit everything, nothing is dropped from the graph
+			if (done) {
+				graph.endParse();
+			}
+			p.setCache(null);
+			p.setCancelled(null);
+		}
+		if (cancelled.getAsBoolean() || !versions.equals(documents.versions())) {
+			throw new CancellationException("Parse results are out of date");
+		}
+		MacroTable defines = p.getDefines();
+		var previous = snapshot;
+		snapshot = new AnalysisSnapshot(previous.version() + 1, defines, next, includeSession,
+				inputPath.toUri().toString());
+		publishDiagnostics(previous, snapshot);
+		indexBinaryPaths(next.getBinaryPaths());
+		// only the files parsed again or dropped are indexed again
+		var updated = graph.takeUpdated();
+		symbols.setMacros(previous.defines(), defines, updated.keySet());
+		updated.forEach((uri, rec) -> {
+			usages.setCalls(uri, rec != null ? rec.calls() : List.of());
+			var unitSymbols = new ArrayList<SymbolIndex.Symbol>();
+			if (rec != null) {
+				for (String id : rec.unitTypes()) {
+					unitSymbols.add(new SymbolIndex.Symbol(id, SymbolIndex.Kind.UNIT_TYPE, uri, -1));
+				}
+			}
+			symbols.setSymbols("unittypes " + uri, unitSymbols);
+		});
 
-		defines = p.getDefines();
-		binaryPaths = p.getBinaryPaths();
-		calls = p.getMacroCalls();
+		// files that were not parsed again still have the same definitions, keep their items
+		macroItems.retain(defines);
+	}
+
+	/** The macros whose name matches what was typed, at most MAX_RESULTS of them. */
+	private CompletionList macroCompletions(String prefix, String uri) {
+		var result = snapshot.macroIndex().find(prefix, DocumentStore.toPath(uri).toUri().toString());
+		return new CompletionList(result.incomplete(), macroItems.itemsFor(result.entries()));
+	}
 
-		macroCompletions.clear();
-		for (var r : defines.getRows()) {
-			CompletionItem item = new CompletionItem();
-			Definition def = (Definition) r.getColumn("Definition").getValue();
-			item.setLabel(def.name());
-			item.setKind(CompletionItemKind.Method);
-			String docs = def.getDocs();
-			item.setDocumentation(def.name() + (docs != null && !docs.isEmpty() ? ("\n" + docs) : ""));
-			item.setInsertText(item.getLabel());
-			item.setInsertTextFormat(InsertTextFormat.Snippet); //
-			macroCompletions.add(item);
+	/** The macro name typed so far, if the cursor is right after "{" and a name, else null. */
+	private static String macroPrefixAt(String line, Position pos) {
+		int end = Math.min(pos.getCharacter(), line.length());
+		int start = end;
+		while (start > 0 && (Character.isLetterOrDigit(line.charAt(start - 1)) || line.charAt(start - 1) == '_')) {
+			start--;
 		}
+		return start > 0 && line.charAt(start - 1) == '{' ? line.substring(start, end) : null;
 	}
 
-	/** Returns the word under cursor in the file pointed by URI */
-	private static String getWordAtPosition(String uri, Position pos) throws IOException {
-		// Convert URI to path
-		String pathStr = Path.of(java.net.URI.create(uri)).toString();
+	/** Returns the text of the given line, from the open document if possible */
+	private String getLine(String uri, int lineNum) throws IOException {
+		TextDocument doc = documents.get(uri);
+		if (doc != null) {
+			return doc.lineText(lineNum);
+		}
+
+		// not open in the editor, read it from disk
+		List<String> lines = Files.readAllLines(DocumentStore.toPath(uri));
+		return lineNum >= 0 && lineNum < lines.size() ? lines.get(lineNum) : null;
+	}
+
+	/** Row of the unit type whose id is the attribute value under the cursor, or -1. */
+	private int unitTypeAt(String uri, Position pos) throws IOException {
+		if (unitTypes == null) {
+			return -1;
+		}
+		String line = getLine(uri, pos.getLine());
+		int eq = line != null ? line.indexOf('=') : -1;
+		if (eq < 0 || pos.getCharacter() <= eq) {
+			return -1;
+		}
+		String value = line.substring(eq + 1).strip();
+		if (value.startsWith("\"") && value.endsWith("\"") && value.length() > 1) {
+			value = value.substring(1, value.length() - 1);
+		}
+		return unitTypes.find(value);
+	}
 
-		// Read all lines
-		String[] lines = Files.readAllLines(Path.of(pathStr)).toArray(new String[0]);
+	private String describeUnitType(int row) {
+		var sb = new StringBuilder("**" + unitTypes.id(row) + "**\n\n");
+		for (String column : unitTypes.columns()) {
+			String value = unitTypes.get(row, column);
+			if (value != null && !column.equals("id") && !column.equals("description")) {
+				sb.append("* ").append(column).append(": ").append(value).append('\n');
+			}
+		}
+		String description = unitTypes.get(row, "description");
+		if (description != null) {
+			sb.append('\n').append(description);
+		}
+		return sb.toString();
+	}
 
+	/** Returns the word under cursor in the file pointed by URI */
+	private String getWordAtPosition(String uri, Position pos) throws IOException {
 		List<Character> validChars = List.of(':', '+', '-', '/', '~', '.');
 		Predicate<Character> isValid = c -> Character.isJavaIdentifierPart(c) || validChars.contains(c);
 
-		int lineNum = pos.getLine();
-		if (lineNum < 0 || lineNum >= lines.length)
+		TokenStream tokens = tokensOf(uri);
+		if (tokens != null) {
+			return getWordAt(tokens, pos, isValid);
+		}
+
+		String line = getLine(uri, pos.getLine());
+		if (line == null || line.isEmpty())
 			return null;
 
-		String line = lines[lineNum];
 		int charIndex = pos.getCharacter();
 		if (charIndex < 0)
 			charIndex = 0;
@@ -584,4 +1131,36 @@ public class WMLLanguageServer implements LanguageServer, LanguageClientAware, T
 
 		return line.substring(start, end);
 	}
-}
\ No newline at end of file
+
+	/** The word under the cursor from the document's tokens, found in O(log n). */
+	private static String getWordAt(TokenStream tokens, Position pos, Predicate<Character> isValid) {
+		int i = tokens.indexAt(pos.getLine(), pos.getCharacter());
+		if (!isWord(tokens, i)) {
+			// If cursor is on whitespace or after the word, move back one char
+			i = tokens.indexAt(pos.getLine(), pos.getCharacter() - 1);
+			if (!isWord(tokens, i)) {
+				return null;
+			}
+		}
+		if (tokens.kind(i) == STAG || tokens.kind(i) == ETAG) {
+			return tokens.image(i);
+		}
+
+		// the part of the token made of word chars around the cursor
+		String text = tokens.text();
+		int cursor = Math.max(tokens.offset(i), Math.min(tokens.offset(i) + (pos.getCharacter() - tokens.column(i)),
+				tokens.end(i) - 1));
+		int start = cursor;
+		int end = cursor;
+		while (start > tokens.offset(i) && isValid.test(text.charAt(start - 1)))
+			start--;
+		while (end < tokens.end(i) && isValid.test(text.charAt(end)))
+			end++;
+		return start < end ? text.substring(start, end) : null;
+	}
+
+	private static boolean isWord(TokenStream tokens, int i) {
+		return i >= 0 && (tokens.kind(i) == STRING || tokens.kind(i) == PATH || tokens.kind(i) == STAG
+				|| tokens.kind(i) == ETAG);
+	}
+}
@@ -0,0 +1,25 @@
+package com.babai.wml.preprocessor;
+
+import java.nio.file.Path;
+
+import com.babai.wml.core.MacroTable;
+
+/**
+ * Source of previously parsed files. When set on a {@link Preprocessor}, every
+ * included file is first looked up here and replayed instead of parsed if a
+ * valid record exists.
+ */
+public interface FileCache {
+	/**
+	 * Returns a still valid record for the given file, or null if it must be
+	 * parsed again. A record is only valid if the macros it looked up resolve
+	 * the same in defines, the table the file is entered with.
+	 */
+	FileRecord lookup(Path file, MacroTable defines);
+
+	/** Same answer as {@link #lookup}, but without counting the file as visited. */
+	FileRecord peek(Path file, MacroTable defines);
+
+	/** Called with the fresh record of every file that had to be parsed. */
+	void store(FileRecord record);
+}
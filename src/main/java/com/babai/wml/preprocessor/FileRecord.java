@@ -0,0 +1,202 @@
+package com.babai.wml.preprocessor;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.eclipse.lsp4j.Diagnostic;
+
+import com.babai.wml.core.Definition;
+import com.babai.wml.core.MacroCall;
+import com.babai.wml.core.MacroTable;
+
+/**
+ * Everything a single file contributed to a parse: the macros it defined and
+ * the paths it included (in parse order), the macros it referenced, and the
+ * data extracted from its tags. Replaying a record has the same effect on the
+ * define table as parsing the file again.
+ *
+ * The record also keeps what each macro it looked up resolved to when the
+ * file was entered, it can only be replayed while those still resolve the
+ * same, see {@link #resolvesSame(MacroTable)}.
+ */
+public final class FileRecord {
+	/** A macro definition, #undef or include, in the order the parser met them. */
+	public record Step(int line, String name, Definition def, Path include) {
+		public boolean isInclude() {
+			return include != null;
+		}
+
+		public boolean isUndef() {
+			return include == null && def == null;
+		}
+	}
+
+	private final Path path;
+	private final String uri;
+	private final List<Step> steps = new ArrayList<>();
+	private final Set<String> usedMacros = new HashSet<>();
+	// macro name -> fingerprint of the definition it resolved to on entry, 0 if none
+	private final Map<String, Long> lookups = new HashMap<>();
+	private final Set<String> unitTypes = new HashSet<>();
+	private final Set<Path> binaryPaths = new HashSet<>();
+	private final List<MacroCall> calls = new ArrayList<>();
+	private final List<Diagnostic> diagnostics = new ArrayList<>();
+
+	public FileRecord(Path path) {
+		this.path = path;
+		this.uri = path.toUri().toString();
+	}
+
+	public Path path() {
+		return path;
+	}
+
+	public String uri() {
+		return uri;
+	}
+
+	public void addDefine(int line, String name, Definition def) {
+		steps.add(new Step(line, name, def, null));
+	}
+
+	public void addUndef(int line, String name) {
+		steps.add(new Step(line, name, null, null));
+	}
+
+	public void addInclude(Path include) {
+		steps.add(new Step(0, null, null, include));
+	}
+
+	public void addUse(String macroName) {
+		usedMacros.add(macroName);
+	}
+
+	/**
+	 * Remember what the name resolves to in the table the file was entered
+	 * with, only its first lookup counts.
+	 */
+	public void addLookup(String macroName, MacroTable entry) {
+		if (!lookups.containsKey(macroName)) {
+			lookups.put(macroName, fingerprint(entry.first(macroName)));
+		}
+	}
+
+	public void addLookup(String macroName, long fingerprint) {
+		lookups.put(macroName, fingerprint);
+	}
+
+	public void addUnitType(String id) {
+		unitTypes.add(id);
+	}
+
+	public void addBinaryPath(Path bpath) {
+		binaryPaths.add(bpath);
+	}
+
+	public void addCall(MacroCall call) {
+		calls.add(call);
+	}
+
+	public void addDiagnostic(Diagnostic diag) {
+		diagnostics.add(diag);
+	}
+
+	public List<Step> steps() {
+		return steps;
+	}
+
+	/** Macros called or tested with #ifdef, defined or not. */
+	public Set<String> usedMacros() {
+		return usedMacros;
+	}
+
+	/** Macros looked up, with the fingerprint of what they resolved to on entry, 0 if nothing. */
+	public Map<String, Long> lookups() {
+		return lookups;
+	}
+
+	/**
+	 * Whether every macro the file looked up resolves to the same definition
+	 * in the given table, the one the file is entered with now, as it did when
+	 * the file was parsed. A macro defined or removed by another file since
+	 * then changes what parsing the file gives.
+	 */
+	public boolean resolvesSame(MacroTable defines) {
+		for (var e : lookups.entrySet()) {
+			if (fingerprint(defines.first(e.getKey())) != e.getValue()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long fingerprint(MacroTable.Entry e) {
+		return e != null ? e.def().fingerprint() : 0;
+	}
+
+	public Set<String> unitTypes() {
+		return unitTypes;
+	}
+
+	public Set<Path> binaryPaths() {
+		return binaryPaths;
+	}
+
+	public List<MacroCall> calls() {
+		return calls;
+	}
+
+	public List<Diagnostic> diagnostics() {
+		return diagnostics;
+	}
+
+	/** Names of the macros defined or undefined by this file itself (not by its includes). */
+	public Set<String> definedMacros() {
+		var names = new HashSet<String>();
+		for (Step s : steps) {
+			if (!s.isInclude()) {
+				names.add(s.name());
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Names whose definitions differ between the two records, i.e. macros that
+	 * were added, removed or changed. Files using any of these must be parsed
+	 * again.
+	 */
+	public static Set<String> changedMacros(FileRecord before, FileRecord after) {
+		Map<String, String> a = before != null ? before.signatures() : Map.of();
+		Map<String, String> b = after != null ? after.signatures() : Map.of();
+		var changed = new HashSet<String>();
+		for (var e : a.entrySet()) {
+			if (!Objects.equals(e.getValue(), b.get(e.getKey()))) {
+				changed.add(e.getKey());
+			}
+		}
+		for (var e : b.entrySet()) {
+			if (!a.containsKey(e.getKey())) {
+				changed.add(e.getKey());
+			}
+		}
+		return changed;
+	}
+
+	private Map<String, String> signatures() {
+		var sigs = new HashMap<String, String>();
+		for (Step s : steps) {
+			if (!s.isInclude()) {
+				String sig = s.isUndef() ? "#undef" : s.def().toString() + s.def().getDefArgs();
+				sigs.merge(s.name(), sig, String::concat);
+			}
+		}
+		return sigs;
+	}
+}
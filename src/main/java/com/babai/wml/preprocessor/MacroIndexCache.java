@@ -0,0 +1,427 @@
+package com.babai.wml.preprocessor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+import org.eclipse.lsp4j.Diagnostic;
+import org.eclipse.lsp4j.DiagnosticSeverity;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+
+import com.babai.wml.core.Definition;
+import com.babai.wml.core.MacroArg;
+import com.babai.wml.core.MacroCall;
+import com.babai.wml.core.MacroTable;
+
+/**
+ * On-disk snapshot of the records of every file parsed through the
+ * {@code -include} paths, so that the LSP doesn't have to preprocess the core
+ * macros on each launch.
+ *
+ * Each file is keyed by its canonical path, size, modification time and a
+ * CRC32C of its contents. A file is parsed again only if its key changed, if
+ * it uses a macro whose definition changed in a file parsed before it, or if a
+ * macro it looked up resolves differently, like when the file defining it was
+ * deleted.
+ */
+public class MacroIndexCache implements FileCache {
+	private static final int MAGIC = 0x574D4C49; // "WMLI"
+	private static final int VERSION = 4;
+
+	private final Logger log = Logger.getLogger("preprocessor.cache");
+	private final Path cacheFile;
+	private final String context;
+
+	private final Map<String, Entry> entries = new HashMap<>();
+	private final Set<String> visited = new HashSet<>();
+	private final Set<String> changedMacros = new HashSet<>();
+	private boolean dirty = false;
+	private int reused = 0, parsed = 0;
+
+	private static final class Entry {
+		final FileRecord record;
+		final long size;
+		long mtime;
+		final long hash;
+
+		Entry(FileRecord record, long size, long mtime, long hash) {
+			this.record = record;
+			this.size = size;
+			this.mtime = mtime;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * @param cacheFile where the snapshot is kept
+	 * @param context   anything else the parse results depend on (data paths,
+	 *                  predefined macros...). A snapshot written with a
+	 *                  different context is discarded.
+	 */
+	public MacroIndexCache(Path cacheFile, String context) {
+		this.cacheFile = cacheFile;
+		this.context = context;
+	}
+
+	public int reusedCount() {
+		return reused;
+	}
+
+	public int parsedCount() {
+		return parsed;
+	}
+
+	@Override
+	public FileRecord lookup(Path file, MacroTable defines) {
+		String key = canonical(file);
+		visited.add(key);
+		FileRecord rec = check(key, file, defines, true);
+		if (rec != null) {
+			reused++;
+		}
+		return rec;
+	}
+
+	@Override
+	public FileRecord peek(Path file, MacroTable defines) {
+		return check(canonical(file), file, defines, false);
+	}
+
+	/** The entry's record if the file is unchanged, touch updates the kept mtime of touched files. */
+	private FileRecord check(String key, Path file, MacroTable defines, boolean touch) {
+		Entry e = entries.get(key);
+		if (e == null) {
+			return null;
+		}
+
+		try {
+			long size = Files.size(file);
+			long mtime = Files.getLastModifiedTime(file).toMillis();
+			if (size != e.size) {
+				return null;
+			}
+			if (mtime != e.mtime) {
+				// touched, but maybe not changed
+				if (hash(file) != e.hash) {
+					return null;
+				}
+				if (touch) {
+					e.mtime = mtime;
+					dirty = true;
+				}
+			}
+		} catch (IOException ioe) {
+			return null;
+		}
+
+		for (String name : e.record.usedMacros()) {
+			if (changedMacros.contains(name)) {
+				return null;
+			}
+		}
+		return e.record.resolvesSame(defines) ? e.record : null;
+	}
+
+	@Override
+	public void store(FileRecord record) {
+		String key = canonical(record.path());
+		visited.add(key);
+		parsed++;
+		try {
+			Path file = record.path();
+			Entry old = entries.put(key, new Entry(record,
+					Files.size(file),
+					Files.getLastModifiedTime(file).toMillis(),
+					hash(file)));
+			changedMacros.addAll(FileRecord.changedMacros(old != null ? old.record : null, record));
+			dirty = true;
+		} catch (IOException ioe) {
+			entries.remove(key);
+		}
+	}
+
+	/** Read the snapshot, if there is a usable one. */
+	public void load() {
+		if (cacheFile == null || !Files.isRegularFile(cacheFile)) {
+			return;
+		}
+
+		try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || !readString(in).equals(context)) {
+				log.info("Discarding outdated macro index " + cacheFile);
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String key = readString(in);
+				long size = in.readLong();
+				long mtime = in.readLong();
+				long hash = in.readLong();
+				entries.put(key, new Entry(readRecord(in), size, mtime, hash));
+			}
+		} catch (IOException | RuntimeException e) {
+			log.warning("Can't read macro index " + cacheFile + ": " + e);
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Write the snapshot back if anything changed. Files that were not visited
+	 * since {@link #load()} are dropped.
+	 */
+	public void save() {
+		if (cacheFile == null) {
+			return;
+		}
+		if (entries.keySet().retainAll(visited)) {
+			dirty = true;
+		}
+		if (!dirty) {
+			return;
+		}
+
+		try {
+			Files.createDirectories(cacheFile.toAbsolutePath().getParent());
+			Path tmp = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+			try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				writeString(out, context);
+				out.writeInt(entries.size());
+				for (var e : entries.entrySet()) {
+					writeString(out, e.getKey());
+					out.writeLong(e.getValue().size);
+					out.writeLong(e.getValue().mtime);
+					out.writeLong(e.getValue().hash);
+					writeRecord(out, e.getValue().record);
+				}
+			}
+			Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+			dirty = false;
+		} catch (IOException e) {
+			log.warning("Can't write macro index " + cacheFile + ": " + e);
+		}
+	}
+
+	private static String canonical(Path p) {
+		try {
+			return p.toRealPath().toString();
+		} catch (IOException e) {
+			return p.toAbsolutePath().normalize().toString();
+		}
+	}
+
+	private static long hash(Path file) throws IOException {
+		var crc = new CRC32C();
+		try (InputStream in = Files.newInputStream(file)) {
+			byte[] buf = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				crc.update(buf, 0, n);
+			}
+		}
+		return crc.getValue();
+	}
+
+	// --- Serialization ---
+
+	private static void writeRecord(DataOutputStream out, FileRecord rec) throws IOException {
+		writeString(out, rec.path().toString());
+
+		out.writeInt(rec.steps().size());
+		for (FileRecord.Step step : rec.steps()) {
+			if (step.isInclude()) {
+				out.writeByte(1);
+				writeString(out, step.include().toString());
+			} else if (step.isUndef()) {
+				out.writeByte(2);
+				out.writeInt(step.line());
+				writeString(out, step.name());
+			} else {
+				out.writeByte(0);
+				out.writeInt(step.line());
+				writeString(out, step.name());
+				writeDefinition(out, step.def());
+			}
+		}
+
+		writeStrings(out, rec.usedMacros());
+		out.writeInt(rec.lookups().size());
+		for (var e : rec.lookups().entrySet()) {
+			writeString(out, e.getKey());
+			out.writeLong(e.getValue());
+		}
+		writeStrings(out, rec.unitTypes());
+		List<String> bpaths = new ArrayList<>();
+		for (Path p : rec.binaryPaths()) {
+			bpaths.add(p.toString());
+		}
+		writeStrings(out, bpaths);
+
+		out.writeInt(rec.calls().size());
+		for (MacroCall call : rec.calls()) {
+			writeString(out, call.name());
+			out.writeInt(call.startLine());
+			out.writeInt(call.endLine());
+			out.writeInt(call.startChar());
+			out.writeInt(call.endChar());
+			writeString(out, call.caller() != null ? call.caller() : "");
+			out.writeInt(call.args().size());
+			for (MacroArg arg : call.args()) {
+				writeString(out, arg.value());
+				out.writeInt(arg.startLine());
+				out.writeInt(arg.startChar());
+				out.writeInt(arg.endChar());
+			}
+		}
+
+		out.writeInt(rec.diagnostics().size());
+		for (Diagnostic d : rec.diagnostics()) {
+			Range r = d.getRange();
+			out.writeInt(r.getStart().getLine());
+			out.writeInt(r.getStart().getCharacter());
+			out.writeInt(r.getEnd().getLine());
+			out.writeInt(r.getEnd().getCharacter());
+			out.writeInt(d.getSeverity().getValue());
+			writeString(out, d.getMessage());
+		}
+	}
+
+	private static FileRecord readRecord(DataInputStream in) throws IOException {
+		var rec = new FileRecord(Path.of(readString(in)));
+
+		int steps = in.readInt();
+		for (int i = 0; i < steps; i++) {
+			byte kind = in.readByte();
+			if (kind == 1) {
+				rec.addInclude(Path.of(readString(in)));
+			} else if (kind == 2) {
+				int line = in.readInt();
+				rec.addUndef(line, readString(in));
+			} else {
+				int line = in.readInt();
+				String name = readString(in);
+				rec.addDefine(line, name, readDefinition(in));
+			}
+		}
+
+		for (String s : readStrings(in)) {
+			rec.addUse(s);
+		}
+		int lookups = in.readInt();
+		for (int i = 0; i < lookups; i++) {
+			rec.addLookup(readString(in), in.readLong());
+		}
+		for (String s : readStrings(in)) {
+			rec.addUnitType(s);
+		}
+		for (String s : readStrings(in)) {
+			rec.addBinaryPath(Path.of(s));
+		}
+
+		int calls = in.readInt();
+		for (int i = 0; i < calls; i++) {
+			String name = readString(in);
+			int startLine = in.readInt();
+			int endLine = in.readInt();
+			int startChar = in.readInt();
+			int endChar = in.readInt();
+			String caller = readString(in);
+			int nargs = in.readInt();
+			var args = new ArrayList<MacroArg>(nargs);
+			for (int j = 0; j < nargs; j++) {
+				args.add(new MacroArg(readString(in), in.readInt(), in.readInt(), in.readInt()));
+			}
+			rec.addCall(new MacroCall(name, startLine, endLine, startChar, endChar, args, rec.uri(),
+					caller.isEmpty() ? null : caller));
+		}
+
+		int diags = in.readInt();
+		for (int i = 0; i < diags; i++) {
+			var range = new Range(
+					new Position(in.readInt(), in.readInt()),
+					new Position(in.readInt(), in.readInt()));
+			var severity = DiagnosticSeverity.forValue(in.readInt());
+			rec.addDiagnostic(new Diagnostic(range, readString(in), severity, "none"));
+		}
+		return rec;
+	}
+
+	private static void writeDefinition(DataOutputStream out, Definition def) throws IOException {
+		writeString(out, def.getName());
+		writeString(out, def.getValue());
+		out.writeBoolean(def.getDocs() != null);
+		if (def.getDocs() != null) {
+			writeString(out, def.getDocs());
+		}
+		writeStrings(out, def.getArgs());
+		out.writeInt(def.getDefArgs().size());
+		for (var e : def.getDefArgs().entrySet()) {
+			writeString(out, e.getKey());
+			writeString(out, e.getValue());
+		}
+	}
+
+	private static Definition readDefinition(DataInputStream in) throws IOException {
+		String name = readString(in);
+		String value = readString(in);
+		String docs = in.readBoolean() ? readString(in) : null;
+		var args = new Vector<String>(readStrings(in));
+		int ndef = in.readInt();
+		var defArgs = new HashMap<String, String>();
+		for (int i = 0; i < ndef; i++) {
+			defArgs.put(readString(in), readString(in));
+		}
+		var def = new Definition(name, value, args, defArgs);
+		def.setDocs(docs);
+		return def;
+	}
+
+	private static void writeStrings(DataOutputStream out, Iterable<String> strings) throws IOException {
+		List<String> list = new ArrayList<>();
+		strings.forEach(list::add);
+		out.writeInt(list.size());
+		for (String s : list) {
+			writeString(out, s);
+		}
+	}
+
+	private static List<String> readStrings(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		List<String> list = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			list.add(readString(in));
+		}
+		return list;
+	}
+
+	// writeUTF() is limited to 64K, which some macro bodies exceed
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
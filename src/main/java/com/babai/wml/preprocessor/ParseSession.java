@@ -0,0 +1,103 @@
+package com.babai.wml.preprocessor;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.lsp4j.Diagnostic;
+
+import com.babai.wml.core.Config;
+import com.babai.wml.core.MacroCall;
+import com.babai.wml.core.MacroTable;
+
+/**
+ * Results of one parse: macro calls, diagnostics, binary paths and unit
+ * types. Shared by a {@link Preprocessor} and all the child parsers of its
+ * includes. Start a new session for each parse, the old one is dropped along
+ * with everything it collected.
+ */
+public final class ParseSession {
+	// taken whenever a session's binary paths grow, sets of the same version hold the same paths
+	private static final AtomicLong binaryPathVersions = new AtomicLong();
+
+	private final List<MacroCall> macroCalls = new ArrayList<>();
+	private final HashMap<String, List<Diagnostic>> errors = new HashMap<>();
+	private final HashSet<Path> binaryPaths = new HashSet<>();
+	private long binaryPathsVersion = 0;
+	private final HashSet<String> unitTypes = new HashSet<>();
+	private final HashSet<Config> unitTypeData = new HashSet<>();
+	private final MacroTable undefined = new MacroTable();
+
+	public ParseSession() {
+	}
+
+	/**
+	 * A session that continues after an earlier one, e.g. the parse of the
+	 * -include paths: it starts with its binary paths and unit types, but not
+	 * with its calls and diagnostics.
+	 */
+	public ParseSession(ParseSession base) {
+		binaryPaths.addAll(base.binaryPaths);
+		binaryPathsVersion = base.binaryPathsVersion;
+		unitTypes.addAll(base.unitTypes);
+		unitTypeData.addAll(base.unitTypeData);
+	}
+
+	/** Add everything collected by the other session, after what is already here. */
+	void addAll(ParseSession other) {
+		macroCalls.addAll(other.macroCalls);
+		errors.putAll(other.errors);
+		addBinaryPaths(other.binaryPaths);
+		unitTypes.addAll(other.unitTypes);
+		unitTypeData.addAll(other.unitTypeData);
+		other.undefined.forEach(e -> undefined.add(e.line(), e.uri(), e.name(), e.def()));
+	}
+
+	public List<MacroCall> getMacroCalls() {
+		return macroCalls;
+	}
+
+	/** Diagnostics by file URI */
+	public HashMap<String, List<Diagnostic>> getErrors() {
+		return errors;
+	}
+
+	public Set<Path> getBinaryPaths() {
+		return Collections.unmodifiableSet(binaryPaths);
+	}
+
+	/** Add binary paths, the version changes if any of them is new. */
+	public void addBinaryPaths(Collection<Path> paths) {
+		if (binaryPaths.addAll(paths)) {
+			binaryPathsVersion = binaryPathVersions.incrementAndGet();
+		}
+	}
+
+	/** Changes whenever a binary path is added, so results resolved against the paths can be cached by it. */
+	public long getBinaryPathsVersion() {
+		return binaryPathsVersion;
+	}
+
+	public HashSet<String> getUnitTypes() {
+		return unitTypes;
+	}
+
+	public HashSet<Config> getUnitTypeData() {
+		return unitTypeData;
+	}
+
+	/**
+	 * Definitions removed by #undef during this parse. They are out of scope
+	 * for the rest of the parse, but the editor can still navigate to them
+	 * from the files that used them before.
+	 */
+	public MacroTable getUndefined() {
+		return undefined;
+	}
+}
@@ -0,0 +1,60 @@
+package com.babai.wml.preprocessor;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import com.babai.wml.core.MacroTable;
+
+/**
+ * A file of an include directory parsed ahead of time on a worker thread,
+ * against the macros known when the directory was entered.
+ *
+ * Nothing shared is written meanwhile: new macros go into a copy of the
+ * macro table, the other results into a session of its own and the output
+ * into a buffer. The including parser then walks the directory in order and
+ * either commits the result, or throws it away and parses the file again if
+ * it read a macro an earlier sibling defined.
+ */
+final class Speculation implements Callable<Speculation> {
+	final Preprocessor owner;
+	final Path path;
+
+	// Defines of the including parser when the directory was entered, and
+	// the copy this file defines its macros in
+	final MacroTable base;
+	final MacroTable fork;
+
+	// Every macro name looked up, defined or not
+	final Set<String> reads = new HashSet<>();
+
+	// Starts with the binary paths known so far
+	final ParseSession session = new ParseSession();
+	final int knownBinaryPaths;
+	int resolves = 0;
+
+	// records of the parsed files, in the order they would have been stored
+	final List<FileRecord> parsed = new ArrayList<>();
+	final ByteArrayOutputStream output;
+	boolean failed = false;
+
+	Speculation(Preprocessor owner, Path path, MacroTable base, Set<Path> knownBinaryPaths, boolean withOutput) {
+		this.owner = owner;
+		this.path = path;
+		this.base = base;
+		this.fork = base.copy();
+		this.session.addBinaryPaths(knownBinaryPaths);
+		this.knownBinaryPaths = knownBinaryPaths.size();
+		this.output = withOutput ? new ByteArrayOutputStream() : null;
+	}
+
+	@Override
+	public Speculation call() {
+		owner.speculate(this);
+		return this;
+	}
+}
@@ -0,0 +1,261 @@
+package com.babai.wml.preprocessor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * CharStream over the whole text of a file, decoded from UTF-8 in one go.
+ * Token images are cut straight out of the char array, and line and column
+ * are looked up in a table of line starts when a token asks for them instead
+ * of being tracked for every char read. Positions are the same as with
+ * JavaCC's SimpleCharStream.
+ */
+final class TextCharStream implements CharStream {
+	private static final char[] NO_CHARS = new char[0];
+
+	private char[] buf;
+	private int length;
+	// not read yet, only when the first char is asked for
+	private InputStream pending;
+
+	private int pos = -1;
+	private int tokenBegin;
+	// furthest char read, the lexer may look past the end of the token it returns
+	private int reach = -1;
+
+	// lineStarts[i] is the offset of the first char of line i + 1
+	private int[] lineStarts;
+	private int lineCount;
+	private int lastLine;
+
+	private int tabSize = 1;
+	private boolean trackLineColumn = true;
+
+	TextCharStream(String text) {
+		this(text.toCharArray(), text.length());
+	}
+
+	/** The stream is only read when parsing starts. */
+	TextCharStream(InputStream in) {
+		this(NO_CHARS, 0);
+		pending = in;
+	}
+
+	private TextCharStream(char[] buf, int length) {
+		setText(buf, length);
+	}
+
+	static TextCharStream of(Path file) throws IOException {
+		CharBuffer chars = decode(Files.readAllBytes(file));
+		return new TextCharStream(chars.array(), chars.limit());
+	}
+
+	private static CharBuffer decode(byte[] bytes) {
+		try {
+			// never throws with REPLACE, malformed input becomes U+FFFD
+			return StandardCharsets.UTF_8.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE)
+					.decode(ByteBuffer.wrap(bytes));
+		} catch (CharacterCodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void setText(char[] buf, int length) {
+		this.buf = buf;
+		this.length = length;
+		lineStarts = new int[Math.max(16, length / 32)];
+		lineCount = 1;
+		for (int i = 0; i < length; i++) {
+			char c = buf[i];
+			if (c == '\n' || (c == '\r' && (i + 1 == length || buf[i + 1] != '\n'))) {
+				if (lineCount == lineStarts.length) {
+					lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+				}
+				lineStarts[lineCount++] = i + 1;
+			}
+		}
+	}
+
+	private void load() throws IOException {
+		InputStream in = pending;
+		pending = null;
+		CharBuffer chars = decode(in.readAllBytes());
+		setText(chars.array(), chars.limit());
+	}
+
+	@Override
+	public char readChar() throws IOException {
+		if (pos + 1 >= length) {
+			if (pending == null) {
+				// looked for more, what follows the text matters to the token too
+				reach = Math.max(reach, length);
+				throw new IOException("end of input");
+			}
+			load();
+			return readChar();
+		}
+		if (++pos > reach) {
+			reach = pos;
+		}
+		return buf[pos];
+	}
+
+	/** Continue reading at the given offset, for lexing part of the text again. */
+	void seek(int offset) {
+		pos = offset - 1;
+		reach = pos;
+	}
+
+	/** Start tracking how far the next token reads. */
+	void resetReach() {
+		reach = pos;
+	}
+
+	/** Offset of the current token. */
+	int tokenOffset() {
+		return tokenBegin;
+	}
+
+	/** Offset after the last char of the current token. */
+	int tokenEnd() {
+		return pos + 1;
+	}
+
+	/** Offset of the furthest char read since resetReach, the text length if it read past the end. */
+	int reach() {
+		return reach;
+	}
+
+	@Override
+	public char BeginToken() throws IOException {
+		tokenBegin = pos + 1;
+		try {
+			char c = readChar();
+			tokenBegin = pos;
+			return c;
+		} catch (IOException e) {
+			tokenBegin = pos;
+			throw e;
+		}
+	}
+
+	@Override
+	public void backup(int amount) {
+		pos -= amount;
+	}
+
+	@Override
+	public String GetImage() {
+		return new String(buf, tokenBegin, pos - tokenBegin + 1);
+	}
+
+	@Override
+	public char[] GetSuffix(int len) {
+		return Arrays.copyOfRange(buf, pos - len + 1, pos + 1);
+	}
+
+	/** 0 based index into lineStarts of the line holding the offset. */
+	private int lineIndex(int offset) {
+		int i = lastLine;
+		if (lineStarts[i] > offset || (i + 1 < lineCount && lineStarts[i + 1] <= offset)) {
+			// usually the next line, tokens come in order
+			if (i + 2 < lineCount && lineStarts[i + 1] <= offset && lineStarts[i + 2] > offset) {
+				i++;
+			} else {
+				i = Arrays.binarySearch(lineStarts, 0, lineCount, offset);
+				if (i < 0) {
+					i = -i - 2;
+				}
+			}
+			lastLine = i;
+		}
+		return i;
+	}
+
+	private int line(int offset) {
+		return lineIndex(Math.max(offset, 0)) + 1;
+	}
+
+	private int column(int offset) {
+		offset = Math.max(offset, 0);
+		int start = lineStarts[lineIndex(offset)];
+		if (tabSize == 1) {
+			return offset - start + 1;
+		}
+		int column = 0;
+		for (int i = start; i <= offset; i++) {
+			column++;
+			if (i < length && buf[i] == '\t') {
+				column--;
+				column += tabSize - (column % tabSize);
+			}
+		}
+		return column;
+	}
+
+	@Override
+	public int getBeginLine() {
+		return line(tokenBegin);
+	}
+
+	@Override
+	public int getBeginColumn() {
+		return column(tokenBegin);
+	}
+
+	@Override
+	public int getEndLine() {
+		return line(pos);
+	}
+
+	@Override
+	public int getEndColumn() {
+		return column(pos);
+	}
+
+	@Override
+	@Deprecated
+	public int getLine() {
+		return getEndLine();
+	}
+
+	@Override
+	@Deprecated
+	public int getColumn() {
+		return getEndColumn();
+	}
+
+	@Override
+	public void Done() {
+	}
+
+	@Override
+	public void setTabSize(int i) {
+		tabSize = i;
+	}
+
+	@Override
+	public int getTabSize() {
+		return tabSize;
+	}
+
+	@Override
+	public boolean getTrackLineColumn() {
+		return trackLineColumn;
+	}
+
+	@Override
+	public void setTrackLineColumn(boolean trackLineColumn) {
+		this.trackLineColumn = trackLineColumn;
+	}
+}
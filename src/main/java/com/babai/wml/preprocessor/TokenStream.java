@@ -0,0 +1,300 @@
+package com.babai.wml.preprocessor;
+
+import static com.babai.wml.preprocessor.PreprocessorConstants.*;
+
+import java.util.Arrays;
+
+/**
+ * The preprocessor's tokens of a text, kept as parallel int columns for
+ * kind, offset, length, line and column instead of a Token object each.
+ * Every char belongs to exactly one token, chars the lexer rejects are one
+ * char tokens of kind ERROR. Lines and columns are 0 based and only '\n'
+ * starts a line, as with LSP positions.
+ *
+ * update() lexes again only from the first token that looked at the edited
+ * chars up to where the new tokens line up with the old ones again, and
+ * shifts the rest. Instances never change, so they can be shared freely.
+ */
+public final class TokenStream {
+	/** Kind of a char the lexer can't make a token of. */
+	public static final int ERROR = -1;
+
+	private final String text;
+	private final int size;
+	private final int[] kinds, offsets, lengths, lines, columns;
+	// reach[i] is the end of the furthest char read lexing tokens 0 to i,
+	// an edit starting before it can change token i
+	private final int[] reach;
+	private final int[] lineStarts;
+
+	private TokenStream(String text, Columns c, int[] lineStarts) {
+		this.text = text;
+		this.size = c.size;
+		this.kinds = c.kinds;
+		this.offsets = c.offsets;
+		this.lengths = c.lengths;
+		this.lines = c.lines;
+		this.columns = c.columns;
+		this.reach = c.reach;
+		this.lineStarts = lineStarts;
+	}
+
+	/** Lex the whole text. */
+	public static TokenStream of(String text) {
+		int[] lineStarts = lineStarts(text);
+		var c = new Columns(Math.max(16, text.length() / 4));
+		lex(text, lineStarts, 0, c, null, 0);
+		return new TokenStream(text, c, lineStarts);
+	}
+
+	/**
+	 * Tokens of newText, where the chars in [start, oldEnd) of this text were
+	 * replaced by those in [start, newEnd) of newText.
+	 */
+	public TokenStream update(String newText, int start, int oldEnd, int newEnd) {
+		int delta = newEnd - oldEnd;
+		if (start < 0 || oldEnd < start || oldEnd > text.length() || newText.length() != text.length() + delta) {
+			return of(newText);
+		}
+		int[] newLineStarts = lineStarts(newText);
+
+		// first token that read an edited char, or the one after the end of the text
+		int r = firstReaching(start);
+		// a token lexed after "<<" starts out in another lexical state
+		if (r > 0 && kinds[r - 1] == ANGLE_OPEN) {
+			r--;
+		}
+		var c = new Columns(size + Math.max(16, delta / 4));
+		c.copy(this, 0, r, 0, 0, null);
+		int from = r < size ? offsets[r] : text.length();
+		lex(newText, newLineStarts, from, c, this, newEnd);
+		return new TokenStream(newText, c, newLineStarts);
+	}
+
+	private int firstReaching(int offset) {
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (reach[mid] <= offset) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Lex text from the given offset into c. With an old stream, stop once a
+	 * token would start at or after resyncFrom where one of the old tokens
+	 * started, and copy the old tokens from there on instead.
+	 */
+	private static void lex(String text, int[] lineStarts, int from, Columns c, TokenStream old, int resyncFrom) {
+		int delta = old != null ? text.length() - old.text.length() : 0;
+		// old token to compare the next new one with
+		int j = old != null ? Math.max(0, old.indexAfter(resyncFrom - delta)) : 0;
+		int maxReach = c.size > 0 ? c.reach[c.size - 1] : 0;
+
+		var in = new TextCharStream(text);
+		in.seek(from);
+		var lexer = new PreprocessorTokenManager(in);
+		int pos = from;
+		int prevKind = c.size > 0 ? c.kinds[c.size - 1] : EOF;
+		while (pos < text.length()) {
+			if (old != null && pos >= resyncFrom && prevKind != ANGLE_OPEN) {
+				while (j < old.size && old.offsets[j] < pos - delta) {
+					j++;
+				}
+				if (j < old.size && old.offsets[j] == pos - delta && (j == 0 || old.kinds[j - 1] != ANGLE_OPEN)) {
+					c.copy(old, j, old.size, delta, maxReach, lineStarts);
+					return;
+				}
+			}
+
+			int kind, end;
+			in.resetReach();
+			try {
+				Token t = lexer.getNextToken();
+				if (t.kind == EOF) {
+					break;
+				}
+				kind = t.kind;
+				pos = in.tokenOffset();
+				end = in.tokenEnd();
+				maxReach = Math.max(maxReach, in.reach() + 1);
+			} catch (TokenMgrError e) {
+				// skip a char and go on in the default state
+				kind = ERROR;
+				pos = in.tokenOffset();
+				end = pos + 1;
+				maxReach = Math.max(maxReach, in.reach() + 1);
+				in.seek(end);
+				lexer.SwitchTo(DEFAULT);
+			}
+			int line = lineOf(lineStarts, pos);
+			c.add(kind, pos, end - pos, line, pos - lineStarts[line], maxReach);
+			prevKind = kind;
+			pos = end;
+		}
+	}
+
+	private static int[] lineStarts(String text) {
+		int count = 1;
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) == '\n') {
+				count++;
+			}
+		}
+		int[] starts = new int[count];
+		int k = 1;
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) == '\n') {
+				starts[k++] = i + 1;
+			}
+		}
+		return starts;
+	}
+
+	private static int lineOf(int[] lineStarts, int offset) {
+		int i = Arrays.binarySearch(lineStarts, offset);
+		return i >= 0 ? i : -i - 2;
+	}
+
+	public String text() {
+		return text;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int kind(int i) {
+		return kinds[i];
+	}
+
+	public int offset(int i) {
+		return offsets[i];
+	}
+
+	public int length(int i) {
+		return lengths[i];
+	}
+
+	public int end(int i) {
+		return offsets[i] + lengths[i];
+	}
+
+	public int line(int i) {
+		return lines[i];
+	}
+
+	public int column(int i) {
+		return columns[i];
+	}
+
+	public String image(int i) {
+		return text.substring(offsets[i], offsets[i] + lengths[i]);
+	}
+
+	/** Index of the token holding the char at the offset, -1 if it is outside the text. */
+	public int indexAt(int offset) {
+		if (offset < 0 || offset >= text.length()) {
+			return -1;
+		}
+		return indexAfter(offset + 1) - 1;
+	}
+
+	/** Index of the token holding the char at the 0 based line and column, -1 if there is none. */
+	public int indexAt(int line, int column) {
+		if (line < 0 || line >= lineStarts.length || column < 0) {
+			return -1;
+		}
+		int offset = lineStarts[line] + column;
+		int lineEnd = line + 1 < lineStarts.length ? lineStarts[line + 1] : text.length();
+		return offset < lineEnd ? indexAt(offset) : -1;
+	}
+
+	// index of the first token starting at or after the offset
+	private int indexAfter(int offset) {
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (offsets[mid] < offset) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/** Growing columns, while lexing. */
+	private static final class Columns {
+		int size;
+		int[] kinds, offsets, lengths, lines, columns, reach;
+
+		Columns(int capacity) {
+			kinds = new int[capacity];
+			offsets = new int[capacity];
+			lengths = new int[capacity];
+			lines = new int[capacity];
+			columns = new int[capacity];
+			reach = new int[capacity];
+		}
+
+		void add(int kind, int offset, int length, int line, int column, int reach) {
+			ensure(size + 1);
+			kinds[size] = kind;
+			offsets[size] = offset;
+			lengths[size] = length;
+			lines[size] = line;
+			columns[size] = column;
+			this.reach[size] = reach;
+			size++;
+		}
+
+		/**
+		 * Append old tokens from to to, moved by delta chars. Without line
+		 * starts they are the same as before, otherwise their line and column
+		 * are those of the new offset.
+		 */
+		void copy(TokenStream old, int from, int to, int delta, int minReach, int[] lineStarts) {
+			int n = to - from;
+			ensure(size + n);
+			System.arraycopy(old.kinds, from, kinds, size, n);
+			System.arraycopy(old.lengths, from, lengths, size, n);
+			if (lineStarts == null) {
+				System.arraycopy(old.offsets, from, offsets, size, n);
+				System.arraycopy(old.lines, from, lines, size, n);
+				System.arraycopy(old.columns, from, columns, size, n);
+				System.arraycopy(old.reach, from, reach, size, n);
+				size += n;
+				return;
+			}
+			// the tokens moved by whole lines, except those on the line the edit ended on
+			int lineDelta = n > 0 ? lineOf(lineStarts, old.offsets[from] + delta) - old.lines[from] : 0;
+			int firstLine = n > 0 ? old.lines[from] : 0;
+			for (int i = 0; i < n; i++) {
+				int k = from + i;
+				int offset = old.offsets[k] + delta;
+				offsets[size + i] = offset;
+				lines[size + i] = old.lines[k] + lineDelta;
+				columns[size + i] = old.lines[k] == firstLine ? offset - lineStarts[lines[size + i]] : old.columns[k];
+				reach[size + i] = Math.max(minReach, old.reach[k] + delta);
+			}
+			size += n;
+		}
+
+		private void ensure(int capacity) {
+			if (capacity > kinds.length) {
+				int n = Math.max(capacity, kinds.length * 2);
+				kinds = Arrays.copyOf(kinds, n);
+				offsets = Arrays.copyOf(offsets, n);
+				lengths = Arrays.copyOf(lengths, n);
+				lines = Arrays.copyOf(lines, n);
+				columns = Arrays.copyOf(columns, n);
+				reach = Arrays.copyOf(reach, n);
+			}
+		}
+	}
+}
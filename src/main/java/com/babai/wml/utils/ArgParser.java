@@ -1,11 +1,12 @@
 package com.babai.wml.utils;
 
 import java.io.PrintStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Vector;
 
 import com.babai.wml.core.Definition;
+import com.babai.wml.core.MacroTable;
+import com.babai.wml.lsp.ReparseScheduler;
 
 public class ArgParser {
 	public boolean showLogs = false;
@@ -14,12 +15,11 @@ public class ArgParser {
 	public boolean extractUnitTypeData = false;
 	public boolean startLSPServer = false;
 	public Vector<Path> includes = new Vector<>();
-	public Table predefines = Table.ofWithIndices(
-			new Class<?>[] { Integer.class, String.class, String.class, Definition.class },
-			new String[] { "Line", "URI", "Name", "Definition" }, 1, // URI column
-			2 // Name column
-	);
-	public Path dataPath, userDataPath, inputPath, outputPath, unitTypeOutPath;
+	public MacroTable predefines = new MacroTable();
+	public Path dataPath, userDataPath, inputPath, outputPath, unitTypeOutPath, unitDbPath;
+	public Path cachePath = defaultCachePath();
+	public int jobs = 1;
+	public long reparseDelay = ReparseScheduler.DEFAULT_DELAY;
 	public PrintStream out = null;
 
 	// TODO this should be autogenerated
@@ -37,10 +37,26 @@ public class ArgParser {
 				                       Can be used multiple times to include multiple files before the main input.
 				-define/-d [macroname] [body]
 				                       Define this macro before parsing
-				-extract [path]        Extract full unit type data and write it as CSV to the given path
+				-extract [path]        Extract full unit type data and write it to the given path, as CSV or JSON lines
+				                       if it ends with .csv or .jsonl, else as a unit type database
+				-unitdb [path]         Unit type database for the LSP server's completion and hover. Without any input,
+				                       -extract exports it instead.
+				-cache [path]          Where the LSP server keeps its index of the -include macros
+				-no-cache              Always parse the -include paths on LSP startup
+				-jobs/-j [n]           Parse the files of include folders on n threads (default: 1). Their output is held
+				                       back until all files of the folder are parsed
+				-reparse-delay [ms]    How long the LSP server waits for more edits before parsing (default: %d)
 				-input/-i [path]       Preprocess the main input file (Not needed in LSP Server mode `-s`)
-				-output/-o [path]      Write output to the given file
-				-help/-?/-h            Print this help""";
+				-output/-o [path]      Write output to the given file, gzip compressed if it ends with .gz
+				-help/-?/-h            Print this help""".formatted(ReparseScheduler.DEFAULT_DELAY);
+
+	private static Path defaultCachePath() {
+		String xdgCache = System.getenv("XDG_CACHE_HOME");
+		Path cacheDir = xdgCache != null && !xdgCache.isEmpty()
+				? Path.of(xdgCache)
+				: Path.of(System.getProperty("user.home"), ".cache");
+		return cacheDir.resolve("wml-lsp").resolve("macro-index.bin");
+	}
 
 	public void parseArgs(String[] args) {
 		for (int i = 0; i < args.length; i++) {
@@ -69,7 +85,7 @@ public class ArgParser {
 			case "o", "output" -> {
 				try {
 					outputPath = Path.of(args[++i]);
-					out = new PrintStream(Files.newOutputStream(outputPath));
+					out = OutputSink.open(outputPath);
 				} catch (Exception e) {
 					e.printStackTrace();
 				}
@@ -85,7 +101,7 @@ public class ArgParser {
 			case "define", "d" -> {
 				String name = args[++i];
 				String value = args[++i];
-				predefines.addRow(0, "predefined", name, new Definition(name, value));
+				predefines.add(0, "predefined", name, new Definition(name, value));
 			}
 			case "log" -> {
 				showLogs = true;
@@ -99,6 +115,11 @@ public class ArgParser {
 				extractUnitTypeData = true;
 				unitTypeOutPath = Path.of(args[++i]);
 			}
+			case "unitdb" -> unitDbPath = Path.of(args[++i]);
+			case "cache" -> cachePath = Path.of(args[++i]);
+			case "no-cache" -> cachePath = null;
+			case "j", "jobs" -> jobs = Integer.parseInt(args[++i]);
+			case "reparse-delay" -> reparseDelay = Long.parseLong(args[++i]);
 			}
 		}
 	}
@@ -0,0 +1,45 @@
+package com.babai.wml.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Where the CLI writes the preprocessed text. The parser prints every token
+ * on its own, so the output is buffered in large blocks and only written out
+ * when a block is full or the stream is flushed or closed at the end.
+ */
+public final class OutputSink {
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private OutputSink() {
+	}
+
+	/** A UTF-8 stream writing to the file, gzip compressed if its name ends with .gz */
+	public static PrintStream open(Path file) throws IOException {
+		OutputStream os = Channels.newOutputStream(FileChannel.open(file,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+		if (file.getFileName().toString().endsWith(".gz")) {
+			os = new GZIPOutputStream(os, BUFFER_SIZE);
+		}
+		return wrap(os);
+	}
+
+	/** Standard output without flushing at every line, flush it when done. */
+	public static PrintStream stdout() {
+		return wrap(new FileOutputStream(FileDescriptor.out));
+	}
+
+	private static PrintStream wrap(OutputStream os) {
+		return new PrintStream(new BufferedOutputStream(os, BUFFER_SIZE), false, StandardCharsets.UTF_8);
+	}
+}
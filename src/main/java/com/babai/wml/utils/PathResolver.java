@@ -0,0 +1,106 @@
+package com.babai.wml.utils;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * FS.resolve with a bounded cache of its results, found or not. Looking an
+ * asset up costs two stat calls per binary path, and the same paths are
+ * resolved over and over by includes and hovers.
+ *
+ * A path that depends on the binary paths is cached under the version of the
+ * binary path set, which changes whenever a path is added to it, so a newly
+ * found [binary_path] makes it resolve again.
+ * Files appearing or disappearing can change any result, so file events
+ * call invalidate().
+ */
+public final class PathResolver {
+	private static final int DEFAULT_CAPACITY = 4096;
+
+	// currentDir is only set for paths relative to it, version for paths looked up in the binary paths
+	private record Key(String pathStr, Path currentDir, long version) {
+	}
+
+	private final Path dataPath, userDataPath;
+	private final int capacity;
+	private final Map<Key, Path> cache;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	public PathResolver(Path dataPath, Path userDataPath) {
+		this(dataPath, userDataPath, DEFAULT_CAPACITY);
+	}
+
+	public PathResolver(Path dataPath, Path userDataPath, int capacity) {
+		this.dataPath = dataPath;
+		this.userDataPath = userDataPath;
+		this.capacity = capacity;
+		this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Path> eldest) {
+				return size() > PathResolver.this.capacity;
+			}
+		};
+	}
+
+	public Path getDataPath() {
+		return dataPath;
+	}
+
+	public Path getUserDataPath() {
+		return userDataPath;
+	}
+
+	/**
+	 * Same as FS.resolve with this resolver's data paths. The version must
+	 * change whenever binaryPaths gets a new path, as ParseSession's does.
+	 */
+	public Path resolve(String pathStr, Set<Path> binaryPaths, long version, Path currentPath) {
+		Key key;
+		if (pathStr.startsWith(".")) {
+			key = new Key(pathStr, currentPath, 0);
+		} else if (pathStr.startsWith("~") || FS.getAssetType(pathStr).isEmpty()) {
+			key = new Key(pathStr, null, 0);
+		} else {
+			key = new Key(pathStr, null, version);
+		}
+
+		synchronized (cache) {
+			Path p = cache.get(key);
+			if (p != null || cache.containsKey(key)) {
+				hits.increment();
+				return p;
+			}
+		}
+		misses.increment();
+		Path p = FS.resolve(pathStr, binaryPaths, currentPath, dataPath, userDataPath);
+		synchronized (cache) {
+			cache.put(key, p);
+		}
+		return p;
+	}
+
+	/** Forget every result, for when files were created or deleted. */
+	public void invalidate() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	public long hitCount() {
+		return hits.sum();
+	}
+
+	public long missCount() {
+		return misses.sum();
+	}
+}
@@ -0,0 +1,171 @@
+package com.babai.wml.utils;
+
+import java.awt.Color;
+import java.util.logging.Logger;
+
+/**
+ * Level guarded logging for the hot paths of the preprocessor. Messages are
+ * templates, formatted only when their level is enabled: {@code {}} inserts
+ * an argument as is, {@code {path}}, {@code {macro}}, {@code {tag}},
+ * {@code {td}} and {@code {pos}} insert it in the matching color when the
+ * output is an ANSI console (see {@link #setAnsi(boolean)}), and as plain
+ * text otherwise.
+ *
+ * Tracing can be compiled out with {@code -Dwml.trace=false}. {@link #ENABLED}
+ * is then a false constant and the JIT drops every guarded call.
+ */
+public final class Trace {
+	public static final boolean ENABLED = !"false".equals(System.getProperty("wml.trace"));
+
+	public enum Level {
+		OFF, ERROR, WARN, DEBUG
+	}
+
+	private static volatile boolean ansi = false;
+
+	private final Logger logger;
+	private Level level;
+
+	public Trace(String name, Level level) {
+		this.logger = Logger.getLogger(name);
+		this.level = level;
+	}
+
+	/** Color the template arguments with ANSI escapes, for console output. */
+	public static void setAnsi(boolean enabled) {
+		ansi = enabled;
+	}
+
+	public Level getLevel() {
+		return level;
+	}
+
+	public void setLevel(Level level) {
+		this.level = level;
+	}
+
+	public boolean isEnabled(Level l) {
+		return ENABLED && l.compareTo(level) <= 0;
+	}
+
+	public boolean isDebug() {
+		return isEnabled(Level.DEBUG);
+	}
+
+	public void debug(String template) {
+		if (isEnabled(Level.DEBUG)) {
+			log(Level.DEBUG, template, 0, null, null, null);
+		}
+	}
+
+	public void debug(String template, Object a) {
+		if (isEnabled(Level.DEBUG)) {
+			log(Level.DEBUG, template, 1, a, null, null);
+		}
+	}
+
+	public void debug(String template, Object a, Object b) {
+		if (isEnabled(Level.DEBUG)) {
+			log(Level.DEBUG, template, 2, a, b, null);
+		}
+	}
+
+	public void debug(String template, Object a, Object b, Object c) {
+		if (isEnabled(Level.DEBUG)) {
+			log(Level.DEBUG, template, 3, a, b, c);
+		}
+	}
+
+	public void warn(String template) {
+		if (isEnabled(Level.WARN)) {
+			log(Level.WARN, template, 0, null, null, null);
+		}
+	}
+
+	public void warn(String template, Object a) {
+		if (isEnabled(Level.WARN)) {
+			log(Level.WARN, template, 1, a, null, null);
+		}
+	}
+
+	public void warn(String template, Object a, Object b) {
+		if (isEnabled(Level.WARN)) {
+			log(Level.WARN, template, 2, a, b, null);
+		}
+	}
+
+	public void warn(String template, Object a, Object b, Object c) {
+		if (isEnabled(Level.WARN)) {
+			log(Level.WARN, template, 3, a, b, c);
+		}
+	}
+
+	public void error(String template) {
+		if (isEnabled(Level.ERROR)) {
+			log(Level.ERROR, template, 0, null, null, null);
+		}
+	}
+
+	public void error(String template, Object a) {
+		if (isEnabled(Level.ERROR)) {
+			log(Level.ERROR, template, 1, a, null, null);
+		}
+	}
+
+	public void error(String template, Object a, Object b) {
+		if (isEnabled(Level.ERROR)) {
+			log(Level.ERROR, template, 2, a, b, null);
+		}
+	}
+
+	public void error(String template, Object a, Object b, Object c) {
+		if (isEnabled(Level.ERROR)) {
+			log(Level.ERROR, template, 3, a, b, c);
+		}
+	}
+
+	private void log(Level l, String template, int count, Object a, Object b, Object c) {
+		String msg = count == 0 ? template : format(template, ansi, a, b, c);
+		switch (l) {
+		case ERROR -> logger.severe(msg);
+		case WARN -> logger.warning(msg);
+		default -> logger.info(msg);
+		}
+	}
+
+	/** Fill the placeholders of the template with up to three arguments. */
+	public static String format(String template, boolean ansi, Object a, Object b, Object c) {
+		var sb = new StringBuilder(template.length() + 32);
+		int arg = 0;
+		int i = 0;
+		while (i < template.length()) {
+			int open = template.indexOf('{', i);
+			int close = open >= 0 ? template.indexOf('}', open) : -1;
+			if (close < 0) {
+				break;
+			}
+			sb.append(template, i, open);
+			Object value = arg == 0 ? a : arg == 1 ? b : c;
+			arg++;
+			Color color = ansi ? color(template.substring(open + 1, close)) : null;
+			if (color != null) {
+				sb.append(ANSIFormatter.fg(color)).append(value).append(ANSIFormatter.RESET);
+			} else {
+				sb.append(value);
+			}
+			i = close + 1;
+		}
+		return sb.append(template, i, template.length()).toString();
+	}
+
+	private static Color color(String style) {
+		return switch (style) {
+		case "path" -> Colors.filePathColor;
+		case "macro" -> Colors.macroNameColor;
+		case "tag" -> Colors.tagColor;
+		case "td" -> Colors.tdColor;
+		case "pos" -> Colors.lineNumColor;
+		default -> null;
+		};
+	}
+}
@@ -0,0 +1,56 @@
+package com.babai.wml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.babai.wml.core.MacroCall;
+import com.babai.wml.lsp.CallIndex;
+
+class CallIndexTest {
+	private static final String A = "file:///a.cfg";
+	private static final String B = "file:///b.cfg";
+
+	private static MacroCall call(String name, int startLine, int endLine, String uri) {
+		return new MacroCall(name, startLine, endLine, 0, 1, List.of(), uri);
+	}
+
+	@Test
+	void testOverlapping() {
+		var index = new CallIndex(List.of(
+				call("LONG", 0, 50, A),
+				call("ONE", 10, 10, A),
+				call("TWO", 12, 14, A),
+				call("OTHER", 12, 12, B),
+				call("LAST", 60, 61, A)));
+
+		assertEquals(List.of("LONG", "ONE", "TWO", "LAST"), index.inFile(A).stream().map(MacroCall::name).toList());
+		assertEquals(List.of("LONG", "TWO"), index.overlapping(A, 13, 20).stream().map(MacroCall::name).toList());
+		assertEquals(List.of("LAST"), index.overlapping(A, 61, 100).stream().map(MacroCall::name).toList());
+		assertTrue(index.overlapping(A, 51, 59).isEmpty());
+		assertTrue(index.overlapping("file:///c.cfg", 0, 100).isEmpty());
+	}
+
+	@Test
+	void testSameAsScan() {
+		var random = new Random(7);
+		var calls = new ArrayList<MacroCall>();
+		for (int i = 0; i < 2000; i++) {
+			int start = random.nextInt(5000);
+			calls.add(call("M" + i, start, start + (random.nextInt(10) == 0 ? random.nextInt(200) : 0), A));
+		}
+		var index = new CallIndex(calls);
+		for (int q = 0; q < 200; q++) {
+			int from = random.nextInt(5000);
+			int to = from + random.nextInt(60);
+			var expected = calls.stream().filter(c -> c.startLine() <= to && c.endLine() >= from).count();
+			var found = index.overlapping(A, from, to);
+			assertEquals(expected, found.size());
+			assertTrue(found.stream().allMatch(c -> c.startLine() <= to && c.endLine() >= from));
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package com.babai.wml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.babai.wml.preprocessor.Preprocessor;
+import com.babai.wml.preprocessor.PreprocessorConstants;
+import com.babai.wml.preprocessor.Token;
+
+class CharStreamTest {
+	@TempDir
+	Path dir;
+
+	private static List<String> tokens(Preprocessor p) {
+		var result = new ArrayList<String>();
+		for (Token t = p.token_source.getNextToken(); t.kind != PreprocessorConstants.EOF;
+				t = p.token_source.getNextToken()) {
+			if (t.kind != PreprocessorConstants.SPACE && t.kind != PreprocessorConstants.EOL) {
+				result.add(t.image + "@" + t.beginLine + ":" + t.beginColumn + "-" + t.endLine + ":" + t.endColumn);
+			}
+		}
+		return result;
+	}
+
+	@Test
+	void testPositions() {
+		var p = new Preprocessor(Path.of("test.cfg"), "[a]\r\n\tb=c\rdd\n\n[/a]");
+		assertEquals(List.of("[a]@1:1-1:3", "b@2:2-2:2", "=@2:3-2:3", "c@2:4-2:4",
+				"dd@3:1-3:2", "[/a]@5:1-5:4"), tokens(p));
+	}
+
+	@Test
+	void testUtf8File() throws IOException {
+		Path file = dir.resolve("utf8.cfg");
+		Files.writeString(file, "[a]\nname=Ælfwynn\n[/a]\n", StandardCharsets.UTF_8);
+		var p = new Preprocessor(file);
+		assertTrue(tokens(p).contains("Ælfwynn@2:6-2:12"));
+	}
+}
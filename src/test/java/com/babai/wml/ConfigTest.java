@@ -1,10 +1,14 @@
 package com.babai.wml;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
 
 import org.junit.jupiter.api.Test;
 
 import com.babai.wml.core.Config;
+import com.babai.wml.preprocessor.ParseException;
+import com.babai.wml.preprocessor.Preprocessor;
 
 class ConfigTest {
 	@Test
@@ -18,4 +22,57 @@ class ConfigTest {
 		assertEquals("binary_path", cfg.getName());
 		assertEquals("my/test/path.png", cfg.getAttr("path").stringValue());
 	}
+
+	@Test
+	void testNestedRead() {
+		String test = """
+				[unit_type]
+					id=Elf
+					[attack]
+						name=sword
+						description= _ "sword
+				of the elves"
+					[/attack]
+					name= _ "Elf"
+				[/unit_type]
+				""";
+		Config cfg = Config.read(test);
+		assertEquals("Elf", cfg.getID());
+		assertEquals("_ \"Elf\"", cfg.getAttr("name").stringValue());
+		assertEquals(1, cfg.childCount());
+		Config attack = cfg.getChild(0);
+		assertEquals("attack", attack.getName());
+		assertEquals("sword", attack.getAttr("name").stringValue());
+		assertEquals("_ \"sword\nof the elves\"", attack.getAttr("description").stringValue());
+	}
+
+	@Test
+	void testExtractedWhileParsing() throws ParseException {
+		String text = """
+				#define ATTACK NAME
+				[attack]
+					name={NAME}
+				[/attack]
+				#enddef
+				[units]
+					[+unit_type]
+						id=Elf
+						{ATTACK sword}
+						[resistance]
+							blade=80
+						[/resistance]
+					[/unit_type]
+				[/units]
+				""";
+		var p = new Preprocessor(Path.of("test.cfg"), text);
+		p.setExtractData(true);
+		p.parse();
+		assertEquals(1, p.getUnitTypeData().size());
+		Config cfg = p.getUnitTypeData().iterator().next();
+		assertEquals("Elf", cfg.getID());
+		assertNull(cfg.getAttr("name"));
+		assertEquals(2, cfg.childCount());
+		assertEquals("sword", cfg.getChild(0).getAttr("name").stringValue());
+		assertEquals("80", cfg.getChild(1).getAttr("blade").stringValue());
+	}
 }
@@ -0,0 +1,44 @@
+package com.babai.wml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Vector;
+
+import org.junit.jupiter.api.Test;
+
+import com.babai.wml.core.Definition;
+import com.babai.wml.core.MacroArg;
+
+class DefinitionTest {
+	private static Vector<MacroArg> args(String... values) {
+		var v = new Vector<MacroArg>();
+		for (String s : values) {
+			v.add(new MacroArg(s, 0, 0, 0));
+		}
+		return v;
+	}
+
+	@Test
+	void testExpandArgs() {
+		var def = new Definition("UNIT", "[unit]\n\ttype={TYPE}\n\tx,y={X},{Y}\n\tname={TYPE}{MISSING}\n[/unit]",
+				new Vector<>(List.of("TYPE", "X", "Y")));
+		assertEquals("[unit]\n\ttype=Elvish Fighter\n\tx,y=5,6\n\tname=Elvish Fighter{MISSING}\n[/unit]",
+				def.expand2(args("Elvish Fighter", "5", "6"), new HashMap<>()));
+		assertThrows(IllegalArgumentException.class, () -> def.expand2(args("Elvish Fighter"), new HashMap<>()));
+	}
+
+	@Test
+	void testExpandDefaultArgs() {
+		var defArgs = new HashMap<String, String>();
+		defArgs.put("SIDE", "1");
+		var def = new Definition("SIDE_GOLD", "side={SIDE} gold={GOLD} {{SIDE}", new Vector<>(List.of("GOLD")),
+				defArgs);
+		assertEquals("side=1 gold=100 {1", def.expand2(args("100"), new HashMap<>()));
+
+		var keyVals = new HashMap<String, String>();
+		keyVals.put("SIDE", "2");
+		assertEquals("side=2 gold=50 {2", def.expand2(args("50"), keyVals));
+	}
+}
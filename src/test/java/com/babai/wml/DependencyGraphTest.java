@@ -0,0 +1,74 @@
+package com.babai.wml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.babai.wml.lsp.DependencyGraph;
+import com.babai.wml.lsp.DocumentStore;
+import com.babai.wml.preprocessor.Preprocessor;
+
+class DependencyGraphTest {
+	@TempDir
+	Path root;
+
+	private Preprocessor parse(DependencyGraph graph) throws IOException {
+		var p = new Preprocessor(System.in);
+		p.setCache(graph);
+		graph.beginParse();
+		p.subparse(root);
+		graph.endParse();
+		return p;
+	}
+
+	@Test
+	void testReparsesOnlyDependents() throws IOException {
+		Files.writeString(root.resolve("_main.cfg"), "{./a.cfg}\n{./b.cfg}\n{./c.cfg}\n");
+		Files.writeString(root.resolve("a.cfg"), "#define FOO\nfoo=1\n#enddef\n");
+		Files.writeString(root.resolve("b.cfg"), "[side]\n{FOO}\n[/side]\n");
+		Files.writeString(root.resolve("c.cfg"), "[side]\nbar=1\n[/side]\n");
+
+		var graph = new DependencyGraph(new DocumentStore());
+		parse(graph);
+		assertEquals(4, graph.parsedCount());
+		assertEquals(3, graph.includesOf(root.resolve("_main.cfg")).size());
+		assertTrue(graph.usersOf("FOO").contains(root.resolve("b.cfg")));
+
+		// editing c.cfg touches nothing else
+		graph.invalidate(root.resolve("c.cfg"));
+		parse(graph);
+		assertEquals(1, graph.parsedCount());
+
+		// editing FOO's body also reparses b.cfg, which uses it
+		Files.writeString(root.resolve("a.cfg"), "#define FOO\nfoo=2\n#enddef\n");
+		graph.invalidate(root.resolve("a.cfg"));
+		parse(graph);
+		assertEquals(2, graph.parsedCount());
+		assertEquals(2, graph.reusedCount());
+	}
+
+	@Test
+	void testReparsesUsersOfDroppedMacros() throws IOException {
+		Files.writeString(root.resolve("_main.cfg"), "{./a.cfg}\n{./b.cfg}\n");
+		Files.writeString(root.resolve("a.cfg"), "#define FOO\nfoo=1\n#enddef\n");
+		Files.writeString(root.resolve("b.cfg"), "[side]\n{FOO}\n[/side]\n");
+		String b = root.resolve("b.cfg").toUri().toString();
+
+		var graph = new DependencyGraph(new DocumentStore());
+		assertNull(parse(graph).getErrors().get(b));
+
+		// a.cfg isn't included anymore, b.cfg calls a macro that doesn't exist
+		Files.writeString(root.resolve("_main.cfg"), "{./b.cfg}\n");
+		graph.invalidate(root.resolve("_main.cfg"));
+		var p = parse(graph);
+		assertEquals(2, graph.parsedCount());
+		assertEquals(0, graph.reusedCount());
+		assertFalse(graph.contains(root.resolve("a.cfg")));
+		assertEquals("Calling undefined macro FOO", p.getErrors().get(b).get(0).getMessage());
+	}
+}
@@ -0,0 +1,80 @@
+package com.babai.wml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.babai.wml.preprocessor.MacroIndexCache;
+import com.babai.wml.preprocessor.ParseException;
+import com.babai.wml.preprocessor.Preprocessor;
+
+class DirectiveTest {
+	@TempDir
+	Path dir;
+
+	private static Preprocessor parse(String text, ByteArrayOutputStream buf) throws ParseException {
+		var p = new Preprocessor(Path.of("test.cfg"), text);
+		p.setOutput(new PrintStream(buf, true, StandardCharsets.UTF_8));
+		p.parse();
+		return p;
+	}
+
+	private static String output(String text) throws ParseException {
+		var buf = new ByteArrayOutputStream();
+		parse(text, buf);
+		return buf.toString(StandardCharsets.UTF_8).replaceAll("\\s+", " ").strip();
+	}
+
+	@Test
+	void testUndef() throws ParseException {
+		var p = parse("#define FOO\nfoo=1\n#enddef\n#undef FOO\n", new ByteArrayOutputStream());
+		assertFalse(p.getDefines().contains("FOO"));
+		// still known to the editor
+		assertNotNull(p.getSession().getUndefined().first("FOO"));
+
+		assertEquals("[t] b=2 [/t]", output("#define FOO\n#enddef\n#undef FOO\n[t]\n#ifdef FOO\na=1\n#else\nb=2\n#endif\n[/t]\n"));
+	}
+
+	@Test
+	void testIfdefElse() throws ParseException {
+		String text = "#define FOO\n#enddef\n[t]\n"
+				+ "#ifdef FOO\na=1\n#else\nb=2\n#endif\n"
+				+ "#ifdef BAR\nc=3\n#else\nd=4\n#endif\n"
+				+ "#ifndef BAR\ne=5\n#else\nf=6\n#endif\n"
+				+ "#ifndef FOO\ng=7\n#endif\n[/t]\n";
+		assertEquals("[t] a=1 d=4 e=5 [/t]", output(text));
+	}
+
+	@Test
+	void testNestedSkip() throws ParseException {
+		String text = "#ifdef BAR\n#ifdef FOO\n[a]\n[/a]\n#else\n[b]\n[/b]\n#endif\n#else\n[d]\n[/d]\n#endif\n";
+		assertEquals("[d] [/d]", output(text));
+	}
+
+	@Test
+	void testUndefReplayed() throws IOException {
+		Path units = Files.createDirectories(dir.resolve("units"));
+		Files.writeString(units.resolve("a.cfg"), "#define FOO\nfoo=1\n#enddef\n#define BAR\n#enddef\n");
+		Files.writeString(units.resolve("b.cfg"), "#undef FOO\n");
+
+		for (int reused = 0; reused <= 2; reused += 2) {
+			var cache = new MacroIndexCache(dir.resolve("index.bin"), "test");
+			cache.load();
+			var p = new Preprocessor(System.in);
+			p.setCache(cache);
+			p.subparse(units);
+			cache.save();
+			assertEquals(reused, cache.reusedCount());
+			assertFalse(p.getDefines().contains("FOO"));
+			assertTrue(p.getDefines().contains("BAR"));
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package com.babai.wml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.babai.wml.core.Definition;
+import com.babai.wml.core.MacroTable;
+import com.babai.wml.lsp.MacroCompletionIndex;
+
+class MacroCompletionIndexTest {
+	private static final String CORE = "file:///data/core/macros/abilities.cfg";
+	private static final String ADDON = "file:///addon/utils.cfg";
+	private static final String LOCAL = "file:///addon/units/elf.cfg";
+
+	private static MacroTable table() {
+		var t = new MacroTable();
+		t.add(0, CORE, "ABILITY_LEADERSHIP", new Definition("ABILITY_LEADERSHIP", ""));
+		t.add(1, CORE, "ABILITY_HEALS", new Definition("ABILITY_HEALS", ""));
+		t.add(2, CORE, "AMLA_DEFAULT", new Definition("AMLA_DEFAULT", ""));
+		t.add(0, ADDON, "ABILITY_HEALS", new Definition("ABILITY_HEALS", "again"));
+		t.add(1, ADDON, "ADDON_ABILITY", new Definition("ADDON_ABILITY", ""));
+		t.add(0, LOCAL, "abilityLocal", new Definition("abilityLocal", ""));
+		return t;
+	}
+
+	private static List<String> names(MacroCompletionIndex.Result r) {
+		return r.entries().stream().map(MacroTable.Entry::name).toList();
+	}
+
+	@Test
+	void testRankedPrefixAndSegments() {
+		var index = new MacroCompletionIndex(table(), "file:///addon/");
+		assertEquals(5, index.size());
+
+		// local, add-on, then core; prefix matches before segment matches
+		assertEquals(List.of("abilityLocal", "ADDON_ABILITY", "ABILITY_HEALS", "ABILITY_LEADERSHIP"),
+				names(index.find("abi", LOCAL)));
+		assertEquals(List.of("ABILITY_HEALS", "ABILITY_LEADERSHIP", "abilityLocal", "ADDON_ABILITY"),
+				names(new MacroCompletionIndex(table(), null).find("abi", "file:///other.cfg")));
+
+		assertEquals(List.of("ABILITY_LEADERSHIP"), names(index.find("able", LOCAL)));
+		assertEquals(List.of("ABILITY_LEADERSHIP"), names(index.find("ab_lea", LOCAL)));
+		assertEquals(List.of("abilityLocal"), names(index.find("abloc", LOCAL)));
+		assertEquals(List.of("AMLA_DEFAULT"), names(index.find("amde", LOCAL)));
+		assertTrue(index.find("xyz", LOCAL).entries().isEmpty());
+	}
+
+	@Test
+	void testCapped() {
+		var t = new MacroTable();
+		for (int i = 0; i < MacroCompletionIndex.MAX_RESULTS + 20; i++) {
+			String name = "UNIT_" + i;
+			t.add(i, CORE, name, new Definition(name, ""));
+		}
+		var index = new MacroCompletionIndex(t, null);
+		var all = index.find("", LOCAL);
+		assertEquals(MacroCompletionIndex.MAX_RESULTS, all.entries().size());
+		assertTrue(all.incomplete());
+		var few = index.find("unit_11", LOCAL);
+		assertEquals(List.of("UNIT_11", "UNIT_110", "UNIT_111", "UNIT_112", "UNIT_113", "UNIT_114", "UNIT_115",
+				"UNIT_116", "UNIT_117", "UNIT_118", "UNIT_119"), names(few));
+		assertFalse(few.incomplete());
+	}
+}
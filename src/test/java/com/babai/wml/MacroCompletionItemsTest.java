@@ -0,0 +1,67 @@
+package com.babai.wml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.eclipse.lsp4j.CompletionItem;
+import org.junit.jupiter.api.Test;
+
+import com.babai.wml.core.Definition;
+import com.babai.wml.core.MacroTable;
+import com.babai.wml.lsp.MacroCompletionItems;
+import com.google.gson.JsonPrimitive;
+
+class MacroCompletionItemsTest {
+	private static final String URI = "file:///addon/utils.cfg";
+
+	@Test
+	void testReuseAndRanking() {
+		var t = new MacroTable();
+		t.add(0, URI, "ABILITY_HEALS", new Definition("ABILITY_HEALS", ""));
+		t.add(1, URI, "ABILITY_LEADERSHIP", new Definition("ABILITY_LEADERSHIP", ""));
+		var heals = t.first("ABILITY_HEALS");
+		var leadership = t.first("ABILITY_LEADERSHIP");
+		var items = new MacroCompletionItems();
+
+		List<CompletionItem> first = items.itemsFor(List.of(heals, leadership));
+		assertEquals(List.of("0000", "0001"), first.stream().map(CompletionItem::getSortText).toList());
+
+		// another response ranks them the other way, the first one keeps its order
+		List<CompletionItem> second = items.itemsFor(List.of(leadership, heals));
+		assertEquals("0000", second.get(0).getSortText());
+		assertEquals("ABILITY_LEADERSHIP", second.get(0).getData());
+		assertEquals("0000", first.get(0).getSortText());
+		assertEquals("ABILITY_HEALS", first.get(0).getData());
+		assertEquals(2, items.size());
+
+		// a definition that was replaced drops its item
+		var next = t.copy();
+		next.removeAll("ABILITY_HEALS");
+		next.add(0, URI, "ABILITY_HEALS", new Definition("ABILITY_HEALS", "again"));
+		items.retain(next);
+		assertEquals(1, items.size());
+		items.retain(t);
+		assertEquals(1, items.size());
+	}
+
+	@Test
+	void testResolve() {
+		var def = new Definition("LEADER_UNIT", "[unit]\n[/unit]");
+		def.addArg("TYPE");
+		def.setDocs("A leader of the given type");
+		var t = new MacroTable();
+		t.add(0, URI, "LEADER_UNIT", def);
+		var item = new MacroCompletionItems().itemsFor(List.of(t.first("LEADER_UNIT"))).get(0);
+		assertNull(item.getDocumentation());
+
+		// the client sends the data back as JSON
+		item.setData(new JsonPrimitive("LEADER_UNIT"));
+		MacroCompletionItems.resolve(item, name -> name.equals("LEADER_UNIT") ? def : null);
+		assertEquals(def.name() + "\nA leader of the given type", item.getDocumentation().getLeft());
+
+		var other = new CompletionItem("[unit]");
+		MacroCompletionItems.resolve(other, name -> fail());
+		assertNull(other.getDocumentation());
+	}
+}
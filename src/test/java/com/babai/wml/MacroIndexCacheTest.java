@@ -0,0 +1,87 @@
+package com.babai.wml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.babai.wml.preprocessor.MacroIndexCache;
+import com.babai.wml.preprocessor.Preprocessor;
+
+class MacroIndexCacheTest {
+	@TempDir
+	Path dir;
+
+	private Path macros, cacheFile;
+
+	@BeforeEach
+	void setup() throws IOException {
+		macros = Files.createDirectories(dir.resolve("macros"));
+		cacheFile = dir.resolve("cache/index.bin");
+		Files.writeString(macros.resolve("a.cfg"), "#define FOO\nfoo=1\n#enddef\n");
+		Files.writeString(macros.resolve("b.cfg"), "#define BAR\n{FOO}\n#enddef\n");
+		Files.writeString(macros.resolve("c.cfg"), "#define BAZ X\nbaz={X}\n#enddef\n");
+		Files.writeString(macros.resolve("notes.txt"), "not wml");
+	}
+
+	private MacroIndexCache parse(Preprocessor p) throws IOException {
+		var cache = new MacroIndexCache(cacheFile, "test");
+		cache.load();
+		p.setCache(cache);
+		p.subparse(macros);
+		cache.save();
+		return cache;
+	}
+
+	private static String body(Preprocessor p, String name) {
+		var entry = p.getDefines().first(name);
+		assertNotNull(entry, name + " not defined");
+		return entry.def().getValue().strip();
+	}
+
+	@Test
+	void testReusesUnchangedFiles() throws IOException {
+		var first = parse(new Preprocessor(System.in));
+		assertEquals(3, first.parsedCount());
+		assertTrue(Files.exists(cacheFile));
+
+		var p = new Preprocessor(System.in);
+		var second = parse(p);
+		assertEquals(0, second.parsedCount());
+		assertEquals(3, second.reusedCount());
+		assertEquals(3, p.getDefines().size());
+		assertEquals("foo=1", body(p, "BAR"));
+		assertEquals("baz={X}", body(p, "BAZ"));
+	}
+
+	@Test
+	void testReparsesChangedFileAndDependents() throws IOException {
+		parse(new Preprocessor(System.in));
+		Files.writeString(macros.resolve("a.cfg"), "#define FOO\nfoo=22\n#enddef\n");
+
+		var p = new Preprocessor(System.in);
+		var cache = parse(p);
+		// a.cfg changed, b.cfg uses FOO, c.cfg is untouched
+		assertEquals(2, cache.parsedCount());
+		assertEquals(1, cache.reusedCount());
+		assertEquals("foo=22", body(p, "BAR"));
+	}
+
+	@Test
+	void testReparsesUsersOfDeletedMacros() throws IOException {
+		parse(new Preprocessor(System.in));
+		Files.delete(macros.resolve("a.cfg"));
+
+		// b.cfg is unchanged, but FOO is gone
+		var p = new Preprocessor(System.in);
+		var cache = parse(p);
+		assertEquals(1, cache.parsedCount());
+		assertEquals(1, cache.reusedCount());
+		assertEquals("{FOO}", body(p, "BAR"));
+	}
+}
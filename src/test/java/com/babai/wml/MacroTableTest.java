@@ -0,0 +1,115 @@
+package com.babai.wml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import com.babai.wml.core.Definition;
+import com.babai.wml.core.MacroTable;
+
+class MacroTableTest {
+	private static Definition def(String name) {
+		return new Definition(name, name.toLowerCase());
+	}
+
+	@Test
+	void testCopyIsIndependent() {
+		var t = new MacroTable();
+		t.add(0, "a.cfg", "FOO", def("FOO"));
+		t.add(3, "a.cfg", "BAR", def("BAR"));
+		var snapshot = t.copy();
+
+		t.add(7, "b.cfg", "FOO", def("FOO"));
+		t.removeAll("BAR");
+		assertEquals(2, t.size());
+		assertEquals(0, t.first("FOO").line());
+		assertEquals(7, t.last("FOO").line());
+		assertFalse(t.contains("BAR"));
+		assertEquals(List.of(), t.inFile("a.cfg").stream().filter(e -> e.name().equals("BAR")).toList());
+
+		assertEquals(2, snapshot.size());
+		assertEquals(1, snapshot.get("FOO").size());
+		assertTrue(snapshot.contains("BAR"));
+		assertEquals(Set.of("FOO", "BAR"), MacroTable.changedNames(snapshot, t));
+
+		t.restore(snapshot);
+		assertEquals(Set.of(), MacroTable.changedNames(snapshot, t));
+		assertTrue(t.contains("BAR"));
+	}
+
+	@Test
+	void testMergeFork() {
+		var main = new MacroTable();
+		main.add(0, "base.cfg", "OLD", def("OLD"));
+		main.add(1, "base.cfg", "GONE", def("GONE"));
+		var base = main.copy();
+
+		var fork = base.copy();
+		fork.removeAll("GONE");
+		fork.add(0, "fork.cfg", "NEW", def("NEW"));
+		// meanwhile, other names change in the main table
+		main.add(0, "other.cfg", "OTHER", def("OTHER"));
+
+		main.merge(base, fork);
+		assertEquals(3, main.size());
+		assertTrue(main.contains("OLD"));
+		assertTrue(main.contains("NEW"));
+		assertTrue(main.contains("OTHER"));
+		assertFalse(main.contains("GONE"));
+		assertEquals(1, main.inFile("base.cfg").size());
+		assertEquals(1, main.inFile("fork.cfg").size());
+	}
+
+	@Test
+	void testMatchesHashMap() {
+		var rnd = new Random(7);
+		// "Aa" and "BB" have the same hash code
+		String[] names = new String[300];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = i % 10 == 0 ? "Aa".repeat(i / 10 + 1) : "M" + i;
+		}
+		for (int i = 0; i < names.length; i += 20) {
+			names[i + 1] = "BB" + names[i].substring(2);
+		}
+
+		var t = new MacroTable();
+		var expected = new HashMap<String, Integer>();
+		var snapshots = new ArrayList<MacroTable>();
+		var models = new ArrayList<Map<String, Integer>>();
+		for (int i = 0; i < 5000; i++) {
+			String name = names[rnd.nextInt(names.length)];
+			if (rnd.nextInt(4) == 0) {
+				t.removeAll(name);
+				expected.remove(name);
+			} else {
+				t.add(i, "f" + (i % 7), name, def(name));
+				expected.merge(name, 1, Integer::sum);
+			}
+			if (i % 500 == 0) {
+				snapshots.add(t.copy());
+				models.add(new HashMap<>(expected));
+			}
+		}
+		check(t, expected);
+		for (int i = 0; i < snapshots.size(); i++) {
+			check(snapshots.get(i), models.get(i));
+		}
+	}
+
+	private static void check(MacroTable t, Map<String, Integer> expected) {
+		int size = 0;
+		for (var e : expected.entrySet()) {
+			assertEquals(e.getValue(), t.get(e.getKey()).size(), e.getKey());
+			size += e.getValue();
+		}
+		assertEquals(size, t.size());
+		assertEquals(size, t.entries().size());
+	}
+}
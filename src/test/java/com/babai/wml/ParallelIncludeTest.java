@@ -0,0 +1,68 @@
+package com.babai.wml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.babai.wml.preprocessor.Preprocessor;
+
+class ParallelIncludeTest {
+	@TempDir
+	Path dir;
+
+	@BeforeEach
+	void setup() throws IOException {
+		Path units = Files.createDirectories(dir.resolve("units"));
+		Files.writeString(units.resolve("a.cfg"), "#define FOO\nfoo=1\n#enddef\n[unit_type]\nid=A\n[/unit_type]\n");
+		// uses a macro of an earlier sibling, has to be parsed again
+		Files.writeString(units.resolve("b.cfg"), "{FOO}\n[unit_type]\nid=B\n[/unit_type]\n");
+		Path sub = Files.createDirectories(units.resolve("sub"));
+		Files.writeString(sub.resolve("c.cfg"), "#define BAR X\nbar={X}\n#enddef\n{BAR 1}\n[unit_type]\nid=C\n[/unit_type]\n");
+		Files.writeString(sub.resolve("d.cfg"), "#undef BAR\n{UNDEFINED}\n");
+		Path z = Files.createDirectories(units.resolve("z"));
+		Files.writeString(z.resolve("_main.cfg"), "#define FOO\nfoo=2\n#enddef\n{./../sub/c.cfg}\n");
+	}
+
+	private List<String> parse(int jobs) throws IOException {
+		var buf = new ByteArrayOutputStream();
+		var p = new Preprocessor(System.in);
+		p.setOutput(new PrintStream(buf, true, StandardCharsets.UTF_8));
+		p.setJobs(jobs);
+		p.subparse(dir.resolve("units"));
+
+		var result = new ArrayList<String>();
+		var defines = new TreeSet<String>();
+		for (var e : p.getDefines().entries()) {
+			defines.add(e.uri() + ":" + e.line() + " " + e.name() + "=" + e.def().getValue());
+		}
+		result.add(defines.toString());
+		for (var call : p.getMacroCalls()) {
+			result.add(call.toString());
+		}
+		result.add(new TreeSet<>(p.getUnitTypes()).toString());
+		result.add(new TreeSet<>(p.getErrors().keySet()).toString());
+		result.add(buf.toString(StandardCharsets.UTF_8));
+		return result;
+	}
+
+	@Test
+	void testSameResultAsSequential() throws IOException {
+		List<String> sequential = parse(1);
+		List<String> parallel = parse(4);
+		assertEquals(sequential, parallel);
+		assertTrue(sequential.contains("[A, B, C]"));
+		assertTrue(sequential.get(sequential.size() - 1).contains("foo=1"));
+	}
+}
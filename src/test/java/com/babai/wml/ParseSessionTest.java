@@ -0,0 +1,120 @@
+package com.babai.wml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.babai.wml.core.Definition;
+import com.babai.wml.core.MacroTable;
+import com.babai.wml.lsp.AnalysisSnapshot;
+import com.babai.wml.preprocessor.ParseSession;
+import com.babai.wml.preprocessor.Preprocessor;
+
+class ParseSessionTest {
+	@TempDir
+	Path dir;
+
+	private static ParseSession parse(Path file, ParseSession session) throws IOException {
+		var p = new Preprocessor(System.in);
+		p.setSession(session);
+		p.subparse(file);
+		return session;
+	}
+
+	@Test
+	void testNewSessionStartsEmpty() throws IOException {
+		Path file = dir.resolve("a.cfg");
+		Files.writeString(file, "#define FOO\nfoo=1\n#enddef\n{FOO}\n{MISSING}\n[unit_type]\nid=A\n[/unit_type]\n");
+
+		var first = parse(file, new ParseSession());
+		var second = parse(file, new ParseSession());
+		assertEquals(1, first.getMacroCalls().size());
+		assertEquals(1, second.getMacroCalls().size());
+		assertEquals(1, second.getErrors().get(file.toUri().toString()).size());
+
+		var next = new ParseSession(second);
+		assertTrue(next.getUnitTypes().contains("A"));
+		assertTrue(next.getMacroCalls().isEmpty());
+		assertTrue(next.getErrors().isEmpty());
+	}
+
+	@Test
+	void testConcurrentSessions() throws Exception {
+		Path a = dir.resolve("a.cfg");
+		Path b = dir.resolve("b.cfg");
+		var sa = new StringBuilder("#define A X\na={X}\n#enddef\n");
+		var sb = new StringBuilder("#define B\nb\n#enddef\n");
+		for (int i = 0; i < 200; i++) {
+			sa.append("{A ").append(i).append("}\n");
+			sb.append("{B}\n{B}\n");
+		}
+		Files.writeString(a, sa);
+		Files.writeString(b, sb);
+
+		ExecutorService exec = Executors.newFixedThreadPool(2);
+		try {
+			Callable<ParseSession> ta = () -> parse(a, new ParseSession());
+			Callable<ParseSession> tb = () -> parse(b, new ParseSession());
+			Future<ParseSession> fa = exec.submit(ta);
+			Future<ParseSession> fb = exec.submit(tb);
+			assertEquals(200, fa.get().getMacroCalls().size());
+			assertEquals(400, fb.get().getMacroCalls().size());
+			assertTrue(fa.get().getMacroCalls().stream().allMatch(c -> c.name().equals("A")));
+		} finally {
+			exec.shutdown();
+		}
+	}
+
+	@Test
+	void testSnapshotIsFrozen() throws IOException {
+		Path file = dir.resolve("a.cfg");
+		Files.writeString(file, "#define FOO\nfoo=1\n#enddef\n{FOO}\n#undef FOO\n{MISSING}\n");
+		var p = new Preprocessor(System.in);
+		var session = new ParseSession();
+		p.setSession(session);
+		p.subparse(file);
+
+		var snap = new AnalysisSnapshot(1, p.getDefines(), session, new ParseSession(), null);
+		// changes after publishing don't show through
+		p.getDefines().add(0, "other.cfg", "BAR", new Definition("BAR", ""));
+		p.subparse(file);
+		assertEquals(2, session.getMacroCalls().size());
+		assertEquals(1, snap.calls().size());
+		assertNull(snap.findMacro("BAR"));
+		assertThrows(UnsupportedOperationException.class, () -> snap.calls().clear());
+
+		// still found after #undef
+		String uri = file.toUri().toString();
+		assertEquals(0, snap.findMacro("FOO").line());
+		assertEquals(1, snap.macrosIn(uri).size());
+		assertEquals(1, snap.errorsOf(uri).size());
+	}
+
+	@Test
+	void testDiagnosticResultIds() throws IOException {
+		Path file = dir.resolve("a.cfg");
+		String uri = file.toUri().toString();
+		Files.writeString(file, "{MISSING}\n");
+		var first = new AnalysisSnapshot(1, new MacroTable(), parse(file, new ParseSession()), new ParseSession(), null);
+		var same = new AnalysisSnapshot(2, new MacroTable(), parse(file, new ParseSession()), new ParseSession(), null);
+		assertEquals(first.resultIdOf(uri), same.resultIdOf(uri));
+
+		Files.writeString(file, "\n{MISSING}\n");
+		var moved = new AnalysisSnapshot(3, new MacroTable(), parse(file, new ParseSession()), new ParseSession(), null);
+		assertNotEquals(first.resultIdOf(uri), moved.resultIdOf(uri));
+
+		Files.writeString(file, "\n");
+		var fixed = new AnalysisSnapshot(4, new MacroTable(), parse(file, new ParseSession()), new ParseSession(), null);
+		assertTrue(fixed.errorsOf(uri).isEmpty());
+		assertEquals(AnalysisSnapshot.EMPTY.resultIdOf(uri), fixed.resultIdOf(uri));
+	}
+}
@@ -0,0 +1,95 @@
+package com.babai.wml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.babai.wml.lsp.PathIndex;
+import com.babai.wml.lsp.PathTrie;
+
+class PathIndexTest {
+	@TempDir
+	Path dir;
+
+	@Test
+	void testTrie() {
+		var trie = new PathTrie();
+		trie.add("units/", 0);
+		trie.add("units/elf.png", 0);
+		trie.add("units/elf.cfg", 0);
+		trie.add("units/elves/", 0);
+		trie.add("units/elves/fighter.png", 0);
+		trie.add("utils/", 1);
+		trie.add("units/elf.png", 1);
+		assertEquals(6, trie.size());
+
+		assertEquals(List.of("units/elf.cfg", "units/elf.png", "units/elves/", "units/elves/fighter.png"),
+				trie.find("units/el", 10, p -> true));
+		assertEquals(List.of("units/", "units/elf.cfg"), trie.find("un", 2, p -> true));
+		assertEquals(List.of("units/elf.png", "units/elves/fighter.png"),
+				trie.find("u", 10, p -> p.endsWith(".png")));
+		assertTrue(trie.find("unitz", 10, p -> true).isEmpty());
+
+		// still in root 1
+		trie.remove("units/elf.png", 0);
+		assertTrue(trie.contains("units/elf.png"));
+		trie.remove("units/elf.png", 1);
+		assertFalse(trie.contains("units/elf.png"));
+		assertFalse(trie.contains("units/el"));
+
+		trie.removeAll("units/elves/", 0);
+		assertEquals(List.of("units/", "units/elf.cfg", "utils/"), trie.find("", 10, p -> true));
+		assertEquals(3, trie.size());
+
+		// roots past 64 don't share bits
+		trie.add("units/orc.png", 63);
+		trie.add("units/orc.png", 64);
+		trie.add("units/orc.png", 130);
+		trie.remove("units/orc.png", 64);
+		trie.remove("units/orc.png", 130);
+		assertTrue(trie.contains("units/orc.png"));
+		trie.remove("units/orc.png", 63);
+		assertFalse(trie.contains("units/orc.png"));
+		assertEquals(3, trie.size());
+	}
+
+	private static void await(PathIndex index) throws InterruptedException {
+		for (int i = 0; i < 500 && !index.isIdle(); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(index.isIdle());
+	}
+
+	@Test
+	void testIndex() throws IOException, InterruptedException {
+		Path images = Files.createDirectories(dir.resolve("addon/images/units"));
+		Files.writeString(images.resolve("elf.png"), "");
+		Files.writeString(images.resolve("elf.ogg"), "");
+		Files.createDirectories(dir.resolve("addon/.git"));
+		Files.writeString(dir.resolve("addon/.git/HEAD"), "");
+
+		try (var index = new PathIndex()) {
+			index.addRoot(dir.resolve("addon"), "");
+			index.addBinaryPath(dir.resolve("addon"));
+			index.start(false);
+			await(index);
+
+			assertEquals(List.of("images/", "images/units/", "images/units/elf.ogg", "images/units/elf.png"),
+					index.find("images/", null, 10));
+			// relative to the images folder of the binary path
+			assertEquals(List.of("units/", "units/elf.png"), index.find("units/", "images", 10));
+
+			Files.writeString(images.resolve("orc.png"), "");
+			index.changed(images.resolve("orc.png"), false);
+			index.changed(images.resolve("elf.png"), true);
+			await(index);
+			assertEquals(List.of("units/", "units/orc.png"), index.find("units/", "images", 10));
+		}
+	}
+}
@@ -8,10 +8,13 @@ import org.junit.jupiter.api.Test;
 
 import com.babai.wml.utils.AIGenerated;
 import com.babai.wml.utils.FS;
+import com.babai.wml.preprocessor.ParseSession;
+import com.babai.wml.utils.PathResolver;
 
 import java.io.IOException;
 import java.nio.file.*;
 import java.util.HashSet;
+import java.util.List;
 
 @AIGenerated
 class PathResolverTest {
@@ -84,6 +87,41 @@ class PathResolverTest {
 		assertEquals(tempRoot.resolve("data/core/music/battle.ogg"), result);
 	}
 	
+	@Test
+	void testResolverCache() throws IOException {
+		var resolver = new PathResolver(dataPath, userDataPath);
+		var session = new ParseSession();
+		session.addBinaryPaths(List.of(Path.of("addon")));
+		var bpaths = session.getBinaryPaths();
+		Path fallback = tempRoot.resolve("data/core/images/units/orc.png");
+		Path found = tempRoot.resolve("user/addon/images/units/orc.png");
+
+		// not found is cached too
+		assertEquals(fallback, resolver.resolve("units/orc.png", bpaths, session.getBinaryPathsVersion(), currentPath));
+		assertEquals(fallback, resolver.resolve("units/orc.png", bpaths, session.getBinaryPathsVersion(), tempRoot));
+		assertEquals(1, resolver.missCount());
+		assertEquals(1, resolver.hitCount());
+
+		Files.createDirectories(found.getParent());
+		Files.createFile(found);
+		assertEquals(fallback, resolver.resolve("units/orc.png", bpaths, session.getBinaryPathsVersion(), currentPath));
+		resolver.invalidate();
+		assertEquals(found, resolver.resolve("units/orc.png", bpaths, session.getBinaryPathsVersion(), currentPath));
+		assertEquals(2, resolver.missCount());
+
+		// a new binary path is looked up again
+		long version = session.getBinaryPathsVersion();
+		session.addBinaryPaths(List.of(Path.of("other")));
+		assertNotEquals(version, session.getBinaryPathsVersion());
+		assertEquals(found, resolver.resolve("units/orc.png", bpaths, session.getBinaryPathsVersion(), currentPath));
+		assertEquals(3, resolver.missCount());
+
+		// relative paths are cached per directory
+		assertEquals(tempRoot.resolve("game/maps/a.cfg"), resolver.resolve("./a.cfg", bpaths, session.getBinaryPathsVersion(), currentPath));
+		assertEquals(tempRoot.resolve("data/a.cfg"), resolver.resolve("./a.cfg", bpaths, session.getBinaryPathsVersion(), dataPath));
+		assertEquals(5, resolver.missCount());
+	}
+
 	@AfterAll
 	static void cleanup() throws IOException {
 		// Clean up temporary files (optional)
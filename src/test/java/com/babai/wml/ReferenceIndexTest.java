@@ -0,0 +1,82 @@
+package com.babai.wml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.babai.wml.core.MacroCall;
+import com.babai.wml.lsp.DependencyGraph;
+import com.babai.wml.lsp.DocumentStore;
+import com.babai.wml.lsp.ReferenceIndex;
+import com.babai.wml.preprocessor.Preprocessor;
+
+class ReferenceIndexTest {
+	@TempDir
+	Path root;
+
+	private final DependencyGraph graph = new DependencyGraph(new DocumentStore());
+	private final ReferenceIndex index = new ReferenceIndex();
+
+	// as the server does, only the files parsed again or dropped are indexed again
+	private void parse() throws IOException {
+		var p = new Preprocessor(System.in);
+		p.setCache(graph);
+		graph.beginParse();
+		p.subparse(root);
+		graph.endParse();
+		graph.takeUpdated().forEach((uri, rec) -> index.setCalls(uri, rec != null ? rec.calls() : List.of()));
+	}
+
+	@Test
+	void testCallersAndBodies() throws IOException {
+		Files.writeString(root.resolve("_main.cfg"), "{./a.cfg}\n{./b.cfg}\n");
+		Files.writeString(root.resolve("a.cfg"), "#define ABILITY_LEADERSHIP\n[leadership]\n[/leadership]\n#enddef\n"
+				+ "#define LEADER_UNIT TYPE\n[unit]\n\t{ABILITY_LEADERSHIP}\n\ttype={TYPE}\n[/unit]\n#enddef\n");
+		Files.writeString(root.resolve("b.cfg"), "{LEADER_UNIT Elf}\n[unit]\n\t{ABILITY_LEADERSHIP}\n[/unit]\n");
+		String a = root.resolve("a.cfg").toUri().toString();
+		String b = root.resolve("b.cfg").toUri().toString();
+
+		parse();
+		assertEquals(2, index.updatedCount());
+
+		// the call in LEADER_UNIT's body is made by it, at its own position in a.cfg
+		var byFile = index.callsTo("ABILITY_LEADERSHIP");
+		assertEquals(1, byFile.get(a).size());
+		MacroCall inBody = byFile.get(a).get(0);
+		assertEquals("LEADER_UNIT", inBody.caller());
+		assertEquals(6, inBody.startLine());
+		assertEquals(1, inBody.startChar());
+		assertEquals(1, byFile.get(b).size());
+		assertNull(byFile.get(b).get(0).caller());
+		// parameters aren't macros
+		assertTrue(index.callsTo("TYPE").isEmpty());
+		assertEquals(List.of("LEADER_UNIT", "ABILITY_LEADERSHIP"),
+				index.callsIn(b).stream().map(MacroCall::name).toList());
+
+		// a.cfg and b.cfg are replayed, they aren't indexed again
+		graph.invalidate(root.resolve("_main.cfg"));
+		parse();
+		assertEquals(2, index.updatedCount());
+
+		// b.cfg dropped a call, only it is indexed again
+		Files.writeString(root.resolve("b.cfg"), "{LEADER_UNIT Elf}\n");
+		graph.invalidate(root.resolve("b.cfg"));
+		parse();
+		assertEquals(3, index.updatedCount());
+		assertFalse(index.callsTo("ABILITY_LEADERSHIP").containsKey(b));
+		assertEquals(1, index.callsTo("LEADER_UNIT").get(b).size());
+
+		// and b.cfg isn't included anymore
+		Files.writeString(root.resolve("_main.cfg"), "{./a.cfg}\n");
+		graph.invalidate(root.resolve("_main.cfg"));
+		parse();
+		assertTrue(index.callsTo("LEADER_UNIT").isEmpty());
+		assertEquals(1, index.callsTo("ABILITY_LEADERSHIP").get(a).size());
+	}
+}
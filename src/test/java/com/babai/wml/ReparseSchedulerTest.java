@@ -0,0 +1,74 @@
+package com.babai.wml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.babai.wml.lsp.ReparseScheduler;
+import com.babai.wml.preprocessor.Preprocessor;
+
+class ReparseSchedulerTest {
+	private static void await(ReparseScheduler scheduler) throws InterruptedException {
+		for (int i = 0; i < 500 && !scheduler.isIdle(); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(scheduler.isIdle());
+	}
+
+	@Test
+	void testBurstIsParsedOnce() throws InterruptedException {
+		var runs = new ArrayList<Set<Path>>();
+		try (var scheduler = new ReparseScheduler((changed, cancelled) -> runs.add(changed), 100)) {
+			scheduler.schedule(Path.of("a.cfg"));
+			scheduler.schedule(Path.of("b.cfg"));
+			scheduler.schedule(Path.of("a.cfg"));
+			await(scheduler);
+			assertEquals(List.of(Set.of(Path.of("a.cfg"), Path.of("b.cfg"))), runs);
+			assertEquals(1, scheduler.completedCount());
+		}
+	}
+
+	@Test
+	void testSupersededParseIsCancelled() throws InterruptedException {
+		var started = new CountDownLatch(1);
+		var runs = new ArrayList<Set<Path>>();
+		try (var scheduler = new ReparseScheduler((changed, cancelled) -> {
+			if (runs.isEmpty()) {
+				runs.add(changed);
+				started.countDown();
+				// a long parse, checking for cancellation as the preprocessor does
+				while (!cancelled.getAsBoolean()) {
+					Thread.sleep(5);
+				}
+				throw new CancellationException();
+			}
+			runs.add(changed);
+		}, 0)) {
+			scheduler.schedule(Path.of("a.cfg"));
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			scheduler.schedule(Path.of("b.cfg"));
+			await(scheduler);
+			// the next parse took over the files of the cancelled one
+			assertEquals(List.of(Set.of(Path.of("a.cfg")), Set.of(Path.of("a.cfg"), Path.of("b.cfg"))), runs);
+			assertEquals(1, scheduler.cancelledCount());
+			assertEquals(1, scheduler.completedCount());
+		}
+	}
+
+	@Test
+	void testPreprocessorStopsWhenCancelled() {
+		var p = new Preprocessor(Path.of("test.cfg"), "#define A\n#enddef\n[unit]\n[/unit]\n#define B\n#enddef\n");
+		p.setOutput(null);
+		p.setCancelled(() -> p.getDefines().size() > 0);
+		assertThrows(CancellationException.class, p::parse);
+		assertNull(p.getDefines().first("B"));
+	}
+}
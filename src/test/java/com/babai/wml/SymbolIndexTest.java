@@ -0,0 +1,70 @@
+package com.babai.wml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.babai.wml.core.MacroTable;
+import com.babai.wml.lsp.SymbolIndex;
+import com.babai.wml.lsp.SymbolIndex.Kind;
+import com.babai.wml.lsp.SymbolIndex.Symbol;
+
+class SymbolIndexTest {
+	private static List<String> names(List<Symbol> symbols) {
+		return symbols.stream().map(Symbol::name).toList();
+	}
+
+	@Test
+	void testRanking() {
+		var index = new SymbolIndex();
+		index.setSymbols("a", List.of(
+				new Symbol("ABILITY_LEADERSHIP", Kind.MACRO, "file:///a.cfg", 1),
+				new Symbol("LEADERSHIP", Kind.MACRO, "file:///a.cfg", 5),
+				new Symbol("ABILITY_LEADERSHIP_LEVEL_2", Kind.MACRO, "file:///a.cfg", 9),
+				new Symbol("leader", Kind.TAG, "https://wiki.wesnoth.org/", -1)));
+
+		assertEquals(List.of("LEADERSHIP", "ABILITY_LEADERSHIP", "ABILITY_LEADERSHIP_LEVEL_2"),
+				names(index.find("leadership")));
+		// a typo still finds it
+		assertEquals("LEADERSHIP", index.find("leadrship").get(0).name());
+		assertEquals("leader", index.find("lea").get(0).name());
+		assertEquals("leader", index.find("r").get(0).name());
+		assertTrue(index.find("xyzzy").isEmpty());
+	}
+
+	@Test
+	void testIncrementalUpdates() {
+		var defines = new MacroTable();
+		defines.add(0, "file:///a.cfg", "MAGIC_MISSILE", null);
+		defines.add(3, "file:///b.cfg", "FIREBALL", null);
+		var index = new SymbolIndex();
+		index.setMacros(new MacroTable(), defines, List.of());
+		assertEquals(2, index.size());
+
+		// b.cfg was edited, a.cfg is gone
+		var next = new MacroTable();
+		next.add(3, "file:///b.cfg", "FIREBALL", null);
+		next.add(7, "file:///b.cfg", "FIRE_BREATH", null);
+		index.setMacros(defines, next, List.of("file:///b.cfg"));
+		assertEquals(2, index.size());
+		assertTrue(index.find("missile").isEmpty());
+		assertEquals(List.of("FIREBALL", "FIRE_BREATH"), names(index.find("fire")));
+
+		// many removals compact the index, the rest is still found
+		var random = new Random(3);
+		var many = new ArrayList<Symbol>();
+		for (int i = 0; i < 1000; i++) {
+			many.add(new Symbol("UNIT_" + random.nextInt(100000), Kind.UNIT_TYPE, "file:///u", -1));
+		}
+		index.setSymbols("units", many);
+		index.setSymbols("units", many.subList(0, 10));
+		assertEquals(2 + 10, index.size());
+		for (Symbol s : many.subList(0, 10)) {
+			assertTrue(index.find(s.name()).contains(s));
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package com.babai.wml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.junit.jupiter.api.Test;
+
+import com.babai.wml.lsp.TextDocument;
+
+class TextDocumentTest {
+	@Test
+	void testIncrementalEdits() {
+		var doc = new TextDocument("[unit]\n\tid=Elvish Fighter\n[/unit]\n", 1);
+		// rename the unit type
+		doc.apply(new Range(new Position(1, 11), new Position(1, 18)), "Archer");
+		// add an attribute after the id
+		doc.apply(new Range(new Position(2, 0), new Position(2, 0)), "\thitpoints=29\n");
+
+		assertEquals("[unit]\n\tid=Elvish Archer\n\thitpoints=29\n[/unit]\n", doc.getText());
+		assertEquals(5, doc.lineCount());
+		assertEquals("\thitpoints=29", doc.lineText(2));
+		assertEquals("[/unit]", doc.lineText(3));
+	}
+
+	@Test
+	void testPositionsMatchText() {
+		var rnd = new Random(42);
+		var doc = new TextDocument("", 0);
+		var expected = new StringBuilder();
+		String[] inserts = { "a", "{MACRO}", "\n", "[tag]\r\n", "x=\"y\"\n\n", "" };
+
+		for (int i = 0; i < 500; i++) {
+			int start = rnd.nextInt(expected.length() + 1);
+			int end = start + rnd.nextInt(Math.min(5, expected.length() - start) + 1);
+			String s = inserts[rnd.nextInt(inserts.length)];
+			Range range = new Range(doc.positionAt(start), doc.positionAt(end));
+			doc.apply(range, s);
+			expected.replace(start, end, s);
+			// lines are read from the pieces, the text isn't flattened for them
+			int line = rnd.nextInt(doc.lineCount());
+			assertEquals(expected.toString().split("\n", -1)[line].replaceAll("\r$", ""), doc.lineText(line));
+			if (i % 50 == 0) {
+				// also flatten in the middle of an edit sequence
+				assertEquals(expected.toString(), doc.getText());
+			}
+		}
+
+		String text = expected.toString();
+		assertEquals(text, doc.getText());
+		assertEquals(text.split("\n", -1).length, doc.lineCount());
+		for (int off = 0; off <= text.length(); off++) {
+			Position pos = doc.positionAt(off);
+			int lineStart = text.lastIndexOf('\n', off - 1) + 1;
+			assertEquals(off - lineStart, pos.getCharacter());
+			assertEquals(off, doc.offsetAt(pos));
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package com.babai.wml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.junit.jupiter.api.Test;
+
+import com.babai.wml.lsp.SemanticTokenEncoder;
+import com.babai.wml.lsp.TextDocument;
+import com.babai.wml.preprocessor.PreprocessorConstants;
+import com.babai.wml.preprocessor.TokenStream;
+
+class TokenStreamTest {
+	private static void assertSameTokens(TokenStream expected, TokenStream actual) {
+		assertEquals(expected.text(), actual.text());
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			String at = "token " + i + " of " + expected.text();
+			assertEquals(expected.kind(i), actual.kind(i), at);
+			assertEquals(expected.offset(i), actual.offset(i), at);
+			assertEquals(expected.length(i), actual.length(i), at);
+			assertEquals(expected.line(i), actual.line(i), at);
+			assertEquals(expected.column(i), actual.column(i), at);
+		}
+	}
+
+	@Test
+	void testTokenAt() {
+		var tokens = TokenStream.of("[unit]\n\t{MACRO units/a.png}\n");
+		int i = tokens.indexAt(1, 3);
+		assertEquals(PreprocessorConstants.STRING, tokens.kind(i));
+		assertEquals("MACRO", tokens.image(i));
+		i = tokens.indexAt(1, 9);
+		assertEquals(PreprocessorConstants.PATH, tokens.kind(i));
+		assertEquals(8, tokens.column(i));
+		assertEquals(PreprocessorConstants.STAG, tokens.kind(tokens.indexAt(0, 0)));
+		assertEquals(-1, tokens.indexAt(2, 0));
+		assertEquals(-1, tokens.indexAt(5, 0));
+	}
+
+	@Test
+	void testUpdateSameAsLexingAgain() {
+		var rnd = new Random(11);
+		String[] inserts = { "a", "{MACRO}", "\n", "[tag]", "[/tag]", "x=\"y\n\"", "#define X\n", "#", "<<", ">>",
+				"units/a.png", " ", "\r\n", "\u0001", "" };
+		var doc = new TextDocument("", 0);
+		doc.tokens();
+		var text = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			// a few edits between lookups, merged into one span
+			for (int k = rnd.nextInt(3); k >= 0; k--) {
+				int start = rnd.nextInt(text.length() + 1);
+				int end = start + rnd.nextInt(Math.min(6, text.length() - start) + 1);
+				String s = inserts[rnd.nextInt(inserts.length)];
+				doc.apply(new Range(doc.positionAt(start), doc.positionAt(end)), s);
+				text.replace(start, end, s);
+			}
+			assertSameTokens(TokenStream.of(text.toString()), doc.tokens());
+		}
+	}
+
+	@Test
+	void testSemanticTokens() {
+		var tokens = TokenStream.of("#define FOO\n[unit] # note\n\t{FOO}\n");
+		assertEquals(List.of(
+				0, 0, 7, SemanticTokenEncoder.TYPE_KEYWORD, 0,
+				0, 8, 3, SemanticTokenEncoder.TYPE_MACRO, SemanticTokenEncoder.MOD_DECLARATION,
+				1, 0, 6, SemanticTokenEncoder.TYPE_TAG, 0,
+				0, 7, 6, SemanticTokenEncoder.TYPE_COMMENT, 0,
+				1, 2, 3, SemanticTokenEncoder.TYPE_MACRO, 0), SemanticTokenEncoder.encode(tokens));
+
+		var edit = SemanticTokenEncoder.diff(List.of(1, 2, 3, 4, 5), List.of(1, 2, 9, 4, 5));
+		assertEquals(2, edit.getStart());
+		assertEquals(1, edit.getDeleteCount());
+		assertEquals(List.of(9), edit.getData());
+		assertNull(SemanticTokenEncoder.diff(List.of(1, 2), List.of(1, 2)));
+	}
+}
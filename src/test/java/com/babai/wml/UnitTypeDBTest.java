@@ -0,0 +1,87 @@
+package com.babai.wml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.babai.wml.core.Config;
+import com.babai.wml.core.UnitTypeDB;
+
+class UnitTypeDBTest {
+	@TempDir
+	Path dir;
+
+	private static Config unitType(String id, String race, String hitpoints) {
+		var cfg = new Config("unit_type");
+		cfg.add("id", "\"" + id + "\"");
+		cfg.add("race", race);
+		if (hitpoints != null) {
+			cfg.add("hitpoints", hitpoints);
+		}
+		return cfg;
+	}
+
+	@Test
+	void testWriteAndOpen() throws IOException {
+		var db = UnitTypeDB.of(List.of(
+				unitType("Orcish Grunt", "orc", "38"),
+				unitType("Elvish Fighter", "elf", "33"),
+				unitType("Dwarvish Fighter", "dwarf", null)));
+		Path file = dir.resolve("units.db");
+		db.write(file);
+
+		var read = UnitTypeDB.open(file);
+		assertEquals(3, read.size());
+		assertEquals("Dwarvish Fighter", read.id(0));
+		int elf = read.find("Elvish Fighter");
+		assertEquals(1, elf);
+		assertEquals(-1, read.find("Troll"));
+		assertEquals(UnitTypeDB.INT, read.type(read.column("hitpoints")));
+		assertEquals(UnitTypeDB.STRING, read.type(read.column("race")));
+		assertEquals(33, read.getInt(elf, "hitpoints"));
+		assertEquals(UnitTypeDB.MISSING, read.getInt(0, "hitpoints"));
+		assertEquals("elf", read.get(elf, "race"));
+		assertNull(read.get(elf, "cost"));
+
+		var csv = new StringWriter();
+		read.writeCsv(csv);
+		assertTrue(csv.toString().contains("\nElvish Fighter,elf,,33,"));
+		var jsonl = new StringWriter();
+		read.writeJsonl(jsonl);
+		assertEquals("{\"id\":\"Elvish Fighter\",\"race\":\"elf\",\"hitpoints\":33}", jsonl.toString().split("\n")[1]);
+	}
+
+	@Test
+	void testNumbersOutOfIntRange() throws IOException {
+		// kept as text rather than failing, or reading back as missing
+		for (String hitpoints : List.of("9999999999", "-2147483648")) {
+			var db = UnitTypeDB.of(List.of(unitType("Troll", "troll", hitpoints), unitType("Elvish Fighter", "elf", "33")));
+			assertEquals(UnitTypeDB.STRING, db.type(db.column("hitpoints")));
+			assertEquals(hitpoints, db.get(db.find("Troll"), "hitpoints"));
+		}
+	}
+
+	@Test
+	void testWriteOverOpenDatabase() throws IOException {
+		Path file = dir.resolve("units.db");
+		UnitTypeDB.of(List.of(unitType("Elvish Fighter", "elf", "33"))).write(file);
+		var open = UnitTypeDB.open(file);
+		UnitTypeDB.of(List.of(unitType("Troll", "troll", "55"), unitType("Wose", "wose", "52"))).write(file);
+		// the mapping still sees the old file
+		assertEquals(33, open.getInt(0, "hitpoints"));
+		assertEquals(2, UnitTypeDB.open(file).size());
+	}
+
+	@Test
+	void testNotADatabase() throws IOException {
+		Path file = Files.writeString(dir.resolve("units.csv"), "id,race\n");
+		assertThrows(IOException.class, () -> UnitTypeDB.open(file));
+	}
+}